@@ -1,110 +1,1380 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 public class Iperfer {
 
+	// size of the buffer handed to each write/read when -l is not given
+	public static final int DEFAULT_BUFFER_LEN = 128 * 1024;
+
+	// size of each request/response in latency mode when -l is not given
+	public static final int DEFAULT_MESSAGE_LEN = 64;
+
+	// udp datagram size and target rate (bits per second) when -l and -b are not given
+	public static final int DEFAULT_DATAGRAM_LEN = 1470;
+	public static final long DEFAULT_UDP_RATE = 1000000;
+
+	// every datagram starts with a sequence number, the sender's nanoTime and an id picked afresh for each
+	// run, so the server can tell a late datagram from the run before from one of this run
+	public static final int UDP_HEADER_LEN = 24;
+
+	// the sender parks until it is this close to the next send time, then spins
+	public static final long SPIN_NS = 50000;
+
+	// if the sender falls further behind than this it gives up on the missed slots instead of bursting
+	public static final long MAX_CATCHUP_NS = 1000000;
+
+	// how many copies of the final datagram are sent, in case some of them are lost
+	public static final int UDP_FIN_COUNT = 10;
+
+	// a tcp stream that needs more than a plain sink from the server starts with this magic and a mode;
+	// a plain stream of zeros can never be mistaken for it
+	public static final int HELLO_MAGIC = 0x49504652;
+	public static final int HELLO_LEN = 8;
+	public static final int MODE_ECHO = 1;
+	// the server sends back to the client, instead of or as well as receiving
+	public static final int MODE_REVERSE = 2;
+	public static final int MODE_DUPLEX = 3;
+
+	// a -k server reads each client into a buffer of at most this size, taken from a shared list and put back
+	// when the client leaves, so thousands of clients don't each hold a direct buffer of the full -l length
+	public static final int KEEP_BUFFER_LEN = 16 * 1024;
+	// without virtual threads a -k server serves at most this many clients at once, one platform thread each;
+	// the selector server (-S) has no such limit
+	public static final int MAX_CLIENT_THREADS = 256;
+
+	// everything parsed from the command line
+	static class Options {
+		boolean client_mode;
+		boolean server_mode;
+		String host;
+		int port = -1;
+		int time = -1;
+		int streams = 1;
+		int buffer_len = -1;
+		boolean zero_copy;
+		boolean udp;
+		long rate = -1;
+		// seconds between interim reports, 0 for none
+		int interval;
+		boolean latency;
+		boolean reverse;
+		boolean duplex;
+		// how results are printed: text, json or csv
+		String format = "text";
+		// how many times the test is repeated
+		int runs = 1;
+		// serve any number of clients until killed, optionally all from one selector thread
+		boolean keep;
+		boolean selector;
+	}
+
+	// every result of every run, in the order they were produced; printed as they come in text format and
+	// all together at the end otherwise
+	static List<Sample> results = new ArrayList<Sample>();
+	static String format = "text";
+	static int current_run = 1;
+	// a long-running server prints json and csv as it goes instead of holding everything until it exits
+	static boolean streaming = false;
+	static boolean csv_header_printed = false;
+
 	public static void err(String text) {
 		System.err.println(text);
 		System.exit(1);
 	}
 
+	// returns the value that follows a flag, bailing out if the flag is the last argument
+	public static String next_arg(String[] args, int i) {
+		if(i >= args.length)
+			err("Error: invalid arguments");
+		return args[i];
+	}
+
+	public static int parse_int(String text) {
+		try {
+			return Integer.parseInt(text);
+		} catch(NumberFormatException e) {
+			err("Error: invalid arguments");
+		}
+		return -1;
+	}
+
+	// parses a byte count with an optional K or M suffix, e.g. "128K"
+	public static int parse_size(String text) {
+		if(text.isEmpty())
+			err("Error: invalid arguments");
+		long scale = 1;
+		char unit = Character.toUpperCase(text.charAt(text.length() - 1));
+		if(unit == 'K')
+			scale = 1024;
+		else if(unit == 'M')
+			scale = 1024 * 1024;
+		if(scale != 1)
+			text = text.substring(0, text.length() - 1);
+		long size = parse_int(text) * scale;
+		if(size > Integer.MAX_VALUE)
+			err("Error: invalid arguments");
+		return (int)size;
+	}
+
+	// parses a rate in bits per second with an optional K, M or G suffix, e.g. "100M"
+	public static long parse_rate(String text) {
+		if(text.isEmpty())
+			err("Error: invalid arguments");
+		long scale = 1;
+		char unit = Character.toUpperCase(text.charAt(text.length() - 1));
+		if(unit == 'K')
+			scale = 1000;
+		else if(unit == 'M')
+			scale = 1000000;
+		else if(unit == 'G')
+			scale = 1000000000;
+		if(scale != 1)
+			text = text.substring(0, text.length() - 1);
+		return parse_int(text) * scale;
+	}
+
 	public static void main(String[] args) throws IOException{
-		int arg_num = args.length;
-		// here we assume that the client has exactly seven arguments, server three arguments
-		if (arg_num != 7 && arg_num != 3)
+		Options opt = new Options();
+
+		// client: -c -h <host> -p <port> -t <time> [-P <streams>] [-l <len>] [-z] [-i <interval>]
+		//         -c -h <host> -p <port> -t <time> -R|-d [-P <streams>] [-l <len>] [-i <interval>]
+		//         -c -h <host> -p <port> -t <time> -L [-P <streams>] [-l <len>]
+		//         -c -h <host> -p <port> -t <time> -u [-b <rate>] [-l <len>] [-i <interval>]
+		// server: -s -p <port> [-P <streams>] [-l <len>] [-i <interval>]
+		//         -s -p <port> -u [-i <interval>]
+		//         -s -p <port> -k [-S] [-l <len>] [-i <interval>]
+		// either:  [-J | -C] [-n <runs>]
+		for(int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if(arg.equals("-c"))
+				opt.client_mode = true;
+			else if(arg.equals("-s"))
+				opt.server_mode = true;
+			else if(arg.equals("-h"))
+				opt.host = next_arg(args, ++i);
+			else if(arg.equals("-p"))
+				opt.port = parse_int(next_arg(args, ++i));
+			else if(arg.equals("-t"))
+				opt.time = parse_int(next_arg(args, ++i));
+			else if(arg.equals("-P"))
+				opt.streams = parse_int(next_arg(args, ++i));
+			else if(arg.equals("-l"))
+				opt.buffer_len = parse_size(next_arg(args, ++i));
+			else if(arg.equals("-z"))
+				opt.zero_copy = true;
+			else if(arg.equals("-u"))
+				opt.udp = true;
+			else if(arg.equals("-b"))
+				opt.rate = parse_rate(next_arg(args, ++i));
+			else if(arg.equals("-i"))
+				opt.interval = parse_int(next_arg(args, ++i));
+			else if(arg.equals("-L"))
+				opt.latency = true;
+			else if(arg.equals("-R"))
+				opt.reverse = true;
+			else if(arg.equals("-d"))
+				opt.duplex = true;
+			else if(arg.equals("-J"))
+				opt.format = "json";
+			else if(arg.equals("-C"))
+				opt.format = "csv";
+			else if(arg.equals("-n"))
+				opt.runs = parse_int(next_arg(args, ++i));
+			else if(arg.equals("-k"))
+				opt.keep = true;
+			else if(arg.equals("-S"))
+				opt.selector = true;
+			else
+				err("Error: invalid arguments");
+		}
+
+		// exactly one of the two modes, and the port is always required
+		if(opt.client_mode == opt.server_mode || opt.port == -1)
 			err("Error: invalid arguments");
 
+		// assume port is between 1024 and 65535 inclusively
+		if(opt.port < 1024 || opt.port > 65535)
+			err("Error: port number must be in the range 1024 to 65536");
+
+		if(opt.streams < 1)
+			err("Error: number of parallel streams must be at least 1");
+
+		if(opt.interval < 0)
+			err("Error: interval must not be negative");
+
+		if(opt.runs < 1)
+			err("Error: number of runs must be at least 1");
+		format = opt.format;
+
+		if(opt.buffer_len == -1)
+			opt.buffer_len = opt.udp ? DEFAULT_DATAGRAM_LEN : opt.latency ? DEFAULT_MESSAGE_LEN : DEFAULT_BUFFER_LEN;
+		if(opt.buffer_len < 1)
+			err("Error: buffer length must be at least 1 byte");
+
+		// latency is summarised once, as percentiles over the whole run
+		if(opt.latency && (opt.udp || opt.zero_copy || opt.interval > 0))
+			err("Error: -L cannot be used with -u, -z or -i");
+
+		if((opt.reverse || opt.duplex) && (opt.udp || opt.latency))
+			err("Error: -R and -d cannot be used with -u or -L");
+		if(opt.reverse && opt.duplex)
+			err("Error: -R and -d cannot be used together");
+		// the client does not send in reverse mode, so there is nothing for it to zero-copy
+		if(opt.reverse && opt.zero_copy)
+			err("Error: -z cannot be used with -R");
+
+		if(opt.udp) {
+			// a single datagram stream, paced by -b instead of the socket
+			if(opt.streams != 1 || opt.zero_copy)
+				err("Error: -P and -z cannot be used with -u");
+			if(opt.buffer_len < UDP_HEADER_LEN || opt.buffer_len > 65507)
+				err("Error: datagram length must be in the range " + UDP_HEADER_LEN + " to 65507");
+			if(opt.client_mode && opt.rate == -1)
+				opt.rate = DEFAULT_UDP_RATE;
+			if(opt.client_mode && opt.rate < 1)
+				err("Error: rate must be at least 1 bit per second");
+		} else if(opt.rate != -1)
+			err("Error: -b can only be used with -u");
+
 		// client mode
-		if (arg_num == 7) {
-			// check the sanity of the arguments
-			if(!args[0].equals("-c") || !args[1].equals("-h") || !args[3].equals("-p") || !args[5].equals("-t"))
-				err("Error: invalid arguments");
+		if(opt.client_mode) {
+			if(opt.keep || opt.selector)
+				err("Error: -k and -S can only be used with -s");
 
 			// assume hostname is valid
-			String host = args[2];
-			// assume time is valid
-			int time = Integer.parseInt(args[6]);
-
-			int port = Integer.parseInt(args[4]);
-			// assume port is between 1024 and 65535 inclusively
-			if(port < 1024 || port > 65535)
-				err("Error: port number must be in the range 1024 to 65536");
+			if(opt.host == null || opt.time < 0)
+				err("Error: invalid arguments");
 
 			// start client
-			client(host, port, time);
+			for(current_run = 1; current_run <= opt.runs; current_run++) {
+				if(opt.udp)
+					udp_client(opt);
+				else
+					client(opt);
+			}
 		}
 
 		// server mode
-		if(arg_num == 3) {
-			if(!args[0].equals("-s"))
+		if(opt.server_mode) {
+			if(opt.host != null || opt.time != -1 || opt.zero_copy || opt.rate != -1 || opt.latency
+					|| opt.reverse || opt.duplex)
 				err("Error: invalid arguments");
 
-			int port = Integer.parseInt(args[2]);
-			// assume port is between 1024 and 65535 inclusively
-			if(port < 1024 || port > 65535)
-				err("Error: port number must be in the range 1024 to 65536");
+			if(opt.selector && !opt.keep)
+				err("Error: -S can only be used with -k");
+			if(opt.keep && (opt.udp || opt.runs != 1 || opt.streams != 1))
+				err("Error: -k cannot be used with -u, -n or -P");
 
-			// start client
-			server(port);
+			// start server; the socket stays open between runs so the client can come straight back
+			if(opt.keep) {
+				ServerSocketChannel serverSoc = ServerSocketChannel.open();
+				serverSoc.bind(new InetSocketAddress(opt.port));
+				serve_forever(opt, serverSoc);
+			} else if(opt.udp) {
+				DatagramChannel channel = DatagramChannel.open();
+				channel.bind(new InetSocketAddress(opt.port));
+				for(current_run = 1; current_run <= opt.runs; current_run++)
+					udp_server(opt, channel);
+				channel.close();
+			} else {
+				ServerSocketChannel serverSoc = ServerSocketChannel.open();
+				serverSoc.bind(new InetSocketAddress(opt.port));
+				for(current_run = 1; current_run <= opt.runs; current_run++)
+					server(opt, serverSoc);
+				serverSoc.close();
+			}
+		}
+
+		finish(opt);
+	}
+
+	// progress messages go to stderr when stdout is reserved for json or csv
+	public static void status(String text) {
+		if(format.equals("text"))
+			System.out.println(text);
+		else
+			System.err.println(text);
+	}
+
+	// synchronized as a long-running server reports from every client's thread
+	public static synchronized void report(Sample sample) {
+		if(format.equals("text"))
+			System.out.println(sample.text());
+		else if(streaming && format.equals("json"))
+			System.out.println(sample.json());
+		else if(streaming) {
+			if(!csv_header_printed)
+				System.out.println(Sample.CSV_HEADER);
+			csv_header_printed = true;
+			System.out.println(sample.csv());
+		}
+
+		if(!streaming)
+			results.add(sample);
+	}
+
+	// an interim report covering [from, to] milliseconds since the test began
+	public static Sample interval_sample(String direction, long from, long to, long bytes) {
+		Sample sample = new Sample("interval", direction, bytes, (to - from) / 1000.0);
+		sample.from = from / 1000.0;
+		sample.to = to / 1000.0;
+		sample.label = String.format("[%5.1f-%5.1f sec] %s", sample.from, sample.to, direction);
+		return sample;
+	}
+
+	public static Sample stream_sample(String direction, int stream, long bytes, double seconds) {
+		Sample sample = new Sample("stream", direction, bytes, seconds);
+		sample.stream = stream;
+		sample.label = "[" + stream + "] " + direction;
+		return sample;
+	}
+
+	// one client of a long-running server, labelled by its address
+	public static Sample client_sample(String direction, String peer, long bytes, double seconds) {
+		Sample sample = new Sample("client", direction, bytes, seconds).put("client", peer);
+		sample.label = "[" + peer + "] " + direction;
+		return sample;
+	}
+
+	// the total for a run; labelled [SUM] only when there are per-stream lines above it
+	public static Sample sum_sample(String direction, int streams, long bytes, double seconds) {
+		Sample sample = new Sample("sum", direction, bytes, seconds);
+		sample.label = streams > 1 ? "[SUM] " + direction : direction;
+		return sample;
+	}
+
+	// prints whatever was held back for json or csv, plus the spread of the run totals if there was more than one
+	public static void finish(Options opt) {
+		List<Sample> summary = new ArrayList<Sample>();
+		if(opt.runs > 1) {
+			for(String direction : new String[] { "sent", "received" }) {
+				List<Double> rates = new ArrayList<Double>();
+				for(Sample sample : results) {
+					if(sample.type.equals("sum") && sample.direction.equals(direction))
+						rates.add(sample.mbps());
+				}
+				if(!rates.isEmpty())
+					summary.add(runs_sample(direction, rates));
+			}
+		}
+
+		if(format.equals("text")) {
+			for(Sample sample : summary)
+				System.out.println(sample.text());
+		} else if(format.equals("json")) {
+			StringBuilder out = new StringBuilder("{\"runs\":" + opt.runs + ",\"results\":[");
+			for(int i = 0; i < results.size(); i++)
+				out.append(i > 0 ? "," : "").append(results.get(i).json());
+			out.append("],\"summary\":[");
+			for(int i = 0; i < summary.size(); i++)
+				out.append(i > 0 ? "," : "").append(summary.get(i).json());
+			System.out.println(out.append("]}"));
+		} else {
+			System.out.println(Sample.CSV_HEADER);
+			for(Sample sample : results)
+				System.out.println(sample.csv());
+			for(Sample sample : summary)
+				System.out.println(sample.csv());
 		}
 	}
 
-	public static void client(String hostname, int port, int time) throws IOException {
-		Socket clientSoc = new Socket(hostname, port);
+	// mean, sample standard deviation, min and max of the per-run totals, in Mbps
+	public static Sample runs_sample(String direction, List<Double> rates) {
+		double sum = 0;
+		double min = Double.MAX_VALUE;
+		double max = 0;
+		for(double rate : rates) {
+			sum += rate;
+			min = Math.min(min, rate);
+			max = Math.max(max, rate);
+		}
+		double mean = sum / rates.size();
+		double squares = 0;
+		for(double rate : rates)
+			squares += (rate - mean) * (rate - mean);
+		double stddev = rates.size() > 1 ? Math.sqrt(squares / (rates.size() - 1)) : 0;
 
-		double end = System.currentTimeMillis() + time * 1000;
-		int b_sent = 0;
+		Sample sample = new Sample("runs", direction, 0, 0);
+		sample.run = 0;
+		sample.put("runs", rates.size()).put("mean_mbps", mean).put("stddev_mbps", stddev)
+				.put("min_mbps", min).put("max_mbps", max);
+		sample.label = null;
+		sample.note = String.format("runs=%d %s mean=%.3f Mbps stddev=%.3f Mbps min=%.3f Mbps max=%.3f Mbps",
+				rates.size(), direction, mean, stddev, min, max);
+		return sample;
+	}
 
-		// keep sending the bytes for the time interval
-		while(System.currentTimeMillis() < end) {
-			byte[] data = new byte[1000];
-			// write to the bytes
-			for(int i = 0;i < 1000;i++)
-				data[i] = 0;
+	// a temp file of zeros for the zero-copy path, removed when the client exits
+	public static FileChannel zero_file(int len) throws IOException {
+		File tmp = File.createTempFile("iperfer", ".dat");
+		tmp.deleteOnExit();
+		RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+		raf.write(new byte[len]);
+		return raf.getChannel();
+	}
 
-			// keeping sending in each chunk of 1000 bytes
+	public static byte[] hello(int mode) {
+		byte[] data = new byte[HELLO_LEN];
+		ByteBuffer.wrap(data).putInt(HELLO_MAGIC).putInt(mode);
+		return data;
+	}
+
+	public static void join(Thread[] threads) {
+		for(Thread t : threads) {
 			try {
-				clientSoc.getOutputStream().write(data);
-				b_sent += 1000;
-			} catch(IOException e)  {
-				continue;
+				t.join();
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	// waits for every transfer to finish or for the clock to reach deadline; true if they all finished
+	public static boolean wait_for(Transfer[] transfers, long deadline) {
+		for(Transfer t : transfers) {
+			long remaining = deadline - System.currentTimeMillis();
+			if(remaining <= 0)
+				return false;
+			try {
+				t.join(remaining);
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+			if(t.isAlive())
+				return false;
+		}
+		return true;
+	}
+
+	public static long total_bytes(Transfer[] transfers, boolean outbound) {
+		long total = 0;
+		for(Transfer t : transfers)
+			total += outbound ? t.sent : t.received;
+		return total;
+	}
+
+	// blocks until deadline or until every transfer is done, printing the aggregate of each direction that
+	// carries traffic every interval seconds
+	public static void watch(Transfer[] transfers, int interval, long deadline) {
+		long begin = System.currentTimeMillis();
+		long tick = begin;
+		long last_sent = 0;
+		long last_received = 0;
+		boolean done = false;
+		while(!done) {
+			long next = interval > 0 ? tick + interval * 1000L : Long.MAX_VALUE;
+			done = wait_for(transfers, Math.min(next, deadline));
+			long now = System.currentTimeMillis();
+			if(now >= deadline)
+				done = true;
+			if(interval > 0 && (now >= next || (done && now > tick))) {
+				long sent = total_bytes(transfers, true);
+				long received = total_bytes(transfers, false);
+				if(sent > 0)
+					report(interval_sample("sent", tick - begin, now - begin, sent - last_sent));
+				if(received > 0)
+					report(interval_sample("received", tick - begin, now - begin, received - last_received));
+				last_sent = sent;
+				last_received = received;
+				tick = now;
+			}
+		}
+	}
+
+	// prints the per-stream and aggregate lines for one direction; the rate is taken over seconds, or over
+	// the span the streams were actually running if seconds is negative, in which case a direction that
+	// carried nothing is left out
+	public static void summarize(Transfer[] transfers, boolean outbound, double seconds, String[] note) {
+		String verb = outbound ? "sent" : "received";
+		if(seconds < 0 && total_bytes(transfers, outbound) == 0)
+			return;
+
+		// the aggregate rate covers the span from the first stream starting to the last one finishing
+		long total = 0;
+		long first_start = Long.MAX_VALUE;
+		long last_end = 0;
+		for(int i = 0; i < transfers.length; i++) {
+			Transfer t = transfers[i];
+			long bytes = outbound ? t.sent : t.received;
+			total += bytes;
+			first_start = Math.min(first_start, t.start);
+			last_end = Math.max(last_end, t.end);
+			if(transfers.length > 1)
+				report(stream_sample(verb, i, bytes, seconds >= 0 ? seconds : (t.end - t.start) / 1000.0)
+						.note(note));
+		}
+		report(sum_sample(verb, transfers.length, total, seconds >= 0 ? seconds : (last_end - first_start) / 1000.0)
+				.note(note));
+	}
+
+	public static void client(Options opt) throws IOException {
+		// every stream transfers from the same file, transferTo takes an explicit position so this is safe
+		FileChannel file = opt.zero_copy ? zero_file(opt.buffer_len) : null;
+		String[] note = opt.zero_copy ? new String[] { "path", "transferTo" } : null;
+
+		// open every connection up front so that all of the streams overlap for the whole test
+		Socket[] sockets = new Socket[opt.streams];
+		Transfer[] senders = new Transfer[opt.streams];
+		Transfer[] receivers = new Transfer[opt.streams];
+		for(int i = 0; i < opt.streams; i++) {
+			// transferTo and the receive side both need a channel behind the socket
+			boolean channel = opt.zero_copy || opt.reverse || opt.duplex;
+			Socket soc = channel ? SocketChannel.open(new InetSocketAddress(opt.host, opt.port)).socket()
+					: new Socket(opt.host, opt.port);
+			sockets[i] = soc;
+			if(opt.latency)
+				senders[i] = new Pinger(soc, opt.buffer_len);
+			else {
+				if(opt.reverse || opt.duplex) {
+					soc.getOutputStream().write(hello(opt.reverse ? MODE_REVERSE : MODE_DUPLEX));
+					receivers[i] = new Drainer(soc.getChannel(), opt.buffer_len);
+				}
+				if(!opt.reverse)
+					senders[i] = new Sender(soc, opt.buffer_len, file);
+			}
+		}
+		Transfer[] transfers = opt.reverse ? receivers : opt.duplex ? concat(senders, receivers) : senders;
+
+		for(Transfer t : transfers)
+			t.start();
+
+		// the senders never look at the clock, we stop them once the test time is up
+		watch(transfers, opt.interval, System.currentTimeMillis() + opt.time * 1000L);
+		for(Transfer t : transfers)
+			t.running = false;
+		// in reverse mode our half-close is what tells the server to stop sending
+		if(opt.reverse) {
+			for(Socket soc : sockets)
+				soc.shutdownOutput();
+		}
+		join(transfers);
+		for(Socket soc : sockets)
+			soc.close();
+
+		if(!opt.reverse)
+			summarize(senders, true, opt.time, note);
+		if(opt.reverse || opt.duplex)
+			summarize(receivers, false, -1, null);
+		if(file != null)
+			file.close();
+
+		if(opt.latency) {
+			Histogram latency = new Histogram();
+			for(Transfer s : senders)
+				latency.add(((Pinger)s).latency);
+			report(latency.sample());
+		}
+	}
+
+	public static Transfer[] concat(Transfer[] a, Transfer[] b) {
+		Transfer[] all = Arrays.copyOf(a, a.length + b.length);
+		System.arraycopy(b, 0, all, a.length, b.length);
+		return all;
+	}
+
+	public static void server(Options opt, ServerSocketChannel serverSoc) throws IOException {
+		status("Waiting for client connection");
+
+		// each stream is drained on its own thread as soon as it is accepted
+		Receiver[] receivers = new Receiver[opt.streams];
+		for(int i = 0; i < opt.streams; i++) {
+			receivers[i] = new Receiver(serverSoc.accept(), opt.buffer_len);
+			receivers[i].start();
+		}
+		watch(receivers, opt.interval, Long.MAX_VALUE);
+		join(receivers);
+
+		summarize(receivers, false, -1, null);
+		summarize(receivers, true, -1, null);
+	}
+
+	// one thread per client; virtual threads where the jvm has them (21 and later), otherwise a pool of at
+	// most MAX_CLIENT_THREADS platform threads that rejects clients beyond that
+	public static ExecutorService client_executor() {
+		try {
+			return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch(ReflectiveOperationException e) {
+			return new ThreadPoolExecutor(0, MAX_CLIENT_THREADS, 60, TimeUnit.SECONDS,
+					new SynchronousQueue<Runnable>());
+		}
+	}
+
+	// serves clients until the process is killed, reporting each client as it leaves, the aggregate every
+	// interval seconds, and the grand total on exit
+	public static void serve_forever(Options opt, ServerSocketChannel serverSoc) throws IOException {
+		streaming = true;
+		current_run = 0;
+		final Totals totals = new Totals();
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> totals.report_total()));
+		if(opt.interval > 0) {
+			Thread reporter = new Thread(() -> totals.report_intervals(opt.interval));
+			reporter.setDaemon(true);
+			reporter.start();
+		}
+
+		status("Waiting for client connections");
+		if(opt.selector)
+			serve_selector(opt, serverSoc, totals);
+		else
+			serve_threads(opt, serverSoc, totals);
+	}
+
+	public static void serve_threads(Options opt, ServerSocketChannel serverSoc, Totals totals) throws IOException {
+		ExecutorService pool = client_executor();
+		Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+		int buffer_len = Math.min(opt.buffer_len, KEEP_BUFFER_LEN);
+		while(true) {
+			SocketChannel channel = serverSoc.accept();
+			String peer = String.valueOf(channel.getRemoteAddress());
+			Receiver r = new Receiver(channel, buffer_len, buffers);
+			totals.opened(r);
+			try {
+				pool.execute(() -> {
+					r.run();
+					totals.closed(r, peer, r.received, r.sent, r.start, r.end);
+				});
+			} catch(RejectedExecutionException e) {
+				System.err.println("Error: turned away " + peer + ", already serving " + MAX_CLIENT_THREADS
+						+ " clients; use -S for more");
+				totals.turned_away(r);
+				channel.close();
+			}
+		}
+	}
+
+	// one thread serves every client with non-blocking reads; it only sinks data, so clients that ask for
+	// echo or reverse traffic are turned away
+	public static void serve_selector(Options opt, ServerSocketChannel serverSoc, Totals totals) throws IOException {
+		Selector selector = Selector.open();
+		serverSoc.configureBlocking(false);
+		serverSoc.register(selector, SelectionKey.OP_ACCEPT);
+		// only the byte counts matter, so every connection is read into the same buffer
+		ByteBuffer data = ByteBuffer.allocateDirect(opt.buffer_len);
+
+		while(true) {
+			selector.select();
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while(keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+
+				if(key.isAcceptable()) {
+					SocketChannel channel = serverSoc.accept();
+					if(channel == null)
+						continue;
+					channel.configureBlocking(false);
+					channel.register(selector, SelectionKey.OP_READ, new Client(channel));
+					totals.opened(null);
+					continue;
+				}
+
+				Client c = (Client)key.attachment();
+				int n;
+				try {
+					if(c.hello.hasRemaining()) {
+						n = c.channel.read(c.hello);
+						if(!c.hello.hasRemaining() && c.hello.getInt(0) == HELLO_MAGIC) {
+							System.err.println("Error: " + c.peer + " asked for mode " + c.hello.getInt(4)
+									+ ", which -S does not serve");
+							n = -1;
+						}
+					} else {
+						n = c.channel.read(data);
+						data.clear();
+					}
+				} catch(IOException e) {
+					n = -1;
+				}
+
+				if(n > 0) {
+					c.received += n;
+					totals.received.addAndGet(n);
+				} else if(n < 0) {
+					key.cancel();
+					c.channel.close();
+					totals.closed(null, c.peer, c.received, 0, c.start, System.currentTimeMillis());
+				}
 			}
 		}
+	}
 
-		// format the bandwidth
-		double mbps = b_sent * 8 / (time*1000);
-		System.out.println("sent=" + (b_sent/1000) + " KB rate=" + String.format("%.3f", mbps / 1000.0) + " Mbps");
-		clientSoc.close();
-		return;
+	// waits until System.nanoTime() reaches deadline; parking alone overshoots by tens of microseconds
+	public static void wait_until(long deadline) {
+		long remaining;
+		while((remaining = deadline - System.nanoTime()) > 0) {
+			if(remaining > SPIN_NS)
+				LockSupport.parkNanos(remaining - SPIN_NS);
+			else
+				Thread.onSpinWait();
+		}
 	}
 
-	public static void server(int port) throws IOException {
-		int serverPort = port;
-		ServerSocket serverSoc = new ServerSocket(serverPort);
+	public static void udp_client(Options opt) throws IOException {
+		DatagramChannel channel = DatagramChannel.open();
+		channel.connect(new InetSocketAddress(opt.host, opt.port));
+
+		int len = opt.buffer_len;
+		ByteBuffer data = ByteBuffer.allocateDirect(len);
+		// each datagram gets its own slot on a fixed schedule rather than being sent as fast as possible
+		long interval = (long)(len * 8 * 1000000000.0 / opt.rate);
+		long start = System.nanoTime();
+		long end = start + opt.time * 1000000000L;
+		long next = start;
+		long seq = 0;
+		long report_every = opt.interval * 1000000000L;
+		long next_report = opt.interval > 0 ? start + report_every : Long.MAX_VALUE;
+		long last_seq = 0;
+		long run_id = new Random().nextLong() | 1;
+		data.putLong(16, run_id);
 
-		System.out.println("Waiting for client connection");
-		Socket clientSoc = serverSoc.accept();
+		while(next < end) {
+			wait_until(next);
+			long now = System.nanoTime();
+			data.clear();
+			data.putLong(0, seq);
+			data.putLong(8, now);
+			try {
+				channel.write(data);
+			} catch(PortUnreachableException e) {
+				// the server is not up yet or went away; the datagram counts as lost
+			}
+			seq++;
+			next += interval;
+			if(now - next > MAX_CATCHUP_NS)
+				next = now;
+
+			if(now >= next_report) {
+				long from = (next_report - report_every - start) / 1000000;
+				report(interval_sample("sent", from, from + opt.interval * 1000L, (seq - last_seq) * len));
+				last_seq = seq;
+				next_report += report_every;
+			}
+		}
+		double seconds = (System.nanoTime() - start) / 1000000000.0;
+
+		// tell the server how many datagrams it should have seen
+		data.clear();
+		data.putLong(0, -1);
+		data.putLong(8, seq);
+		for(int i = 0; i < UDP_FIN_COUNT; i++) {
+			data.rewind();
+			try {
+				channel.write(data);
+			} catch(PortUnreachableException e) { }
+			LockSupport.parkNanos(10000000);
+		}
+		channel.close();
+
+		report(sum_sample("sent", 1, seq * len, seconds).note("datagrams", seq));
+	}
 
-		double start = System.currentTimeMillis();
-		// since each read may not read the whole 1000 chunk, we declare a total to capture the trailing bytes
+	// the id of the last udp run the server finished; the spare copies of its final datagram may still be queued
+	static long udp_last_run = 0;
+
+	public static void udp_server(Options opt, DatagramChannel channel) throws IOException {
+		status("Waiting for client datagrams");
+
+		ByteBuffer data = ByteBuffer.allocateDirect(65536);
+		long start = 0;
+		long end = 0;
 		long total_received = 0;
+		long received = 0;
+		long expected = 0;
+		long max_seq = -1;
+		long out_of_order = 0;
+		long duplicates = 0;
+		// which sequence numbers have arrived, so a duplicate is not taken for reordering
+		BitSet seen = new BitSet();
+		long run_id = 0;
+		// RFC 3550 interarrival jitter, in nanoseconds
+		double jitter = 0;
+		long last_transit = 0;
+		long report_every = opt.interval * 1000000000L;
+		long next_report = Long.MAX_VALUE;
+		long last_received = 0;
+
+		while(true) {
+			data.clear();
+			channel.receive(data);
+			long arrival = System.nanoTime();
+			if(data.position() < UDP_HEADER_LEN)
+				continue;
+
+			long seq = data.getLong(0);
+			long sent = data.getLong(8);
+			long id = data.getLong(16);
+			// the previous run is over, and another client's datagrams are not part of this run
+			if(id == udp_last_run || (run_id != 0 && id != run_id))
+				continue;
+			run_id = id;
+			if(seq < 0) {
+				// even if every datagram was lost, the final one says how many there were
+				expected = sent;
+				break;
+			}
+			if(seq < Integer.MAX_VALUE) {
+				if(seen.get((int)seq)) {
+					duplicates++;
+					continue;
+				}
+				seen.set((int)seq);
+			}
+
+			// intervals are only reported as datagrams arrive, a silent interval is folded into the next one
+			if(arrival >= next_report) {
+				long from = (next_report - report_every - start) / 1000000;
+				long to = (arrival - start) / 1000000;
+				report(interval_sample("received", from, to, total_received - last_received)
+						.note("jitter_ms", jitter / 1000000.0, String.format("jitter=%.3f ms", jitter / 1000000.0)));
+				last_received = total_received;
+				next_report = arrival + report_every;
+			}
+
+			if(received == 0) {
+				start = arrival;
+				if(opt.interval > 0)
+					next_report = start + report_every;
+			}
+			end = arrival;
+			received++;
+			total_received += data.position();
+
+			if(seq > max_seq)
+				max_seq = seq;
+			else
+				out_of_order++;
+
+			// the two clocks differ by a constant offset, which cancels out in the difference
+			long transit = arrival - sent;
+			if(received > 1)
+				jitter += (Math.abs(transit - last_transit) - jitter) / 16;
+			last_transit = transit;
+		}
+
+		udp_last_run = run_id;
+
+		long lost = Math.max(0, expected - received);
+		double loss = expected > 0 ? lost * 100.0 / expected : 0;
+		Sample sample = sum_sample("received", 1, total_received, (end - start) / 1000000000.0)
+				.put("jitter_ms", jitter / 1000000.0).put("lost", lost).put("expected", expected)
+				.put("loss_percent", loss).put("out_of_order", out_of_order).put("duplicates", duplicates);
+		sample.note = String.format(" jitter=%.3f ms lost=%d/%d (%.2f%%) out-of-order=%d duplicates=%d",
+				jitter / 1000000.0, lost, expected, loss, out_of_order, duplicates);
+		report(sample);
+	}
+
+	// running totals for a server started with -k, shared by the client threads, the interval reporter and
+	// the shutdown hook
+	static class Totals {
+		long begin = System.currentTimeMillis();
+		AtomicLong clients = new AtomicLong();
+		AtomicInteger connected = new AtomicInteger();
+		// bytes of clients that have left, plus every byte the selector has read so far
+		AtomicLong received = new AtomicLong();
+		AtomicLong sent = new AtomicLong();
+		// clients served by their own thread, whose counters are still moving
+		Set<Transfer> active = ConcurrentHashMap.newKeySet();
+
+		// synchronized with closed, so a client's bytes are counted either in active or in the totals, never
+		// in neither or both
+		synchronized long received_now() {
+			long total = received.get();
+			for(Transfer t : active)
+				total += t.received;
+			return total;
+		}
+
+		synchronized long sent_now() {
+			long total = sent.get();
+			for(Transfer t : active)
+				total += t.sent;
+			return total;
+		}
+
+		// t is null for selector clients, which count straight into the totals
+		void opened(Transfer t) {
+			connected.incrementAndGet();
+			if(t != null)
+				active.add(t);
+		}
+
+		// undoes opened for a client that was never served
+		void turned_away(Transfer t) {
+			active.remove(t);
+			connected.decrementAndGet();
+		}
+
+		void closed(Transfer t, String peer, long client_received, long client_sent, long start, long end) {
+			if(t != null) {
+				synchronized(this) {
+					received.addAndGet(client_received);
+					sent.addAndGet(client_sent);
+					active.remove(t);
+				}
+			}
+			connected.decrementAndGet();
+			clients.incrementAndGet();
+
+			double seconds = (end - start) / 1000.0;
+			report(client_sample("received", peer, client_received, seconds));
+			if(client_sent > 0)
+				report(client_sample("sent", peer, client_sent, seconds));
+		}
+
+		void report_intervals(int interval) {
+			long tick = System.currentTimeMillis();
+			long last_received = 0;
+			long last_sent = 0;
+			while(true) {
+				try {
+					Thread.sleep(interval * 1000L);
+				} catch(InterruptedException e) {
+					return;
+				}
+				long now = System.currentTimeMillis();
+				long now_received = received_now();
+				long now_sent = sent_now();
+				report(interval_sample("received", tick - begin, now - begin, now_received - last_received)
+						.note("active", connected.get()));
+				if(now_sent > 0)
+					report(interval_sample("sent", tick - begin, now - begin, now_sent - last_sent)
+							.note("active", connected.get()));
+				last_received = now_received;
+				last_sent = now_sent;
+				tick = now;
+			}
+		}
+
+		void report_total() {
+			double seconds = (System.currentTimeMillis() - begin) / 1000.0;
+			Sample sample = sum_sample("received", 1, received_now(), seconds).note("clients", clients.get());
+			sample.label = "[TOTAL] received";
+			report(sample);
+			if(sent_now() > 0) {
+				sample = sum_sample("sent", 1, sent_now(), seconds).note("clients", clients.get());
+				sample.label = "[TOTAL] sent";
+				report(sample);
+			}
+		}
+	}
+
+	// per-connection state for the selector server
+	static class Client {
+		SocketChannel channel;
+		String peer;
+		long start = System.currentTimeMillis();
+		long received;
+		// plain streams have no hello, the first bytes are read here anyway in case one is coming
+		ByteBuffer hello = ByteBuffer.allocate(HELLO_LEN);
+
+		public Client(SocketChannel channel) throws IOException {
+			this.channel = channel;
+			this.peer = String.valueOf(channel.getRemoteAddress());
+		}
+	}
+
+	// one stream of a test; each counter has a single writing thread, the interval reports read them
+	static abstract class Transfer extends Thread {
+		volatile boolean running = true;
+		volatile long sent;
+		volatile long received;
+		long start;
+		long end;
+	}
+
+	// reads from a connection until the other side stops sending, counting into t
+	public static void drain(SocketChannel channel, ByteBuffer data, Transfer t) throws IOException {
 		int curr_received = 0;
-		try{
-			byte[] data = new byte[10000];
-			// keep reading while the connection is alive
-			while( (curr_received = clientSoc.getInputStream().read(data)) > 0) {
-				total_received += curr_received;
+		// keep reading while the connection is alive
+		while( (curr_received = channel.read(data)) > 0) {
+			// since each read may not fill the whole buffer, we keep a total to capture the trailing bytes
+			t.received += curr_received;
+			data.clear();
+		}
+	}
+
+	// sends on one connection until it is told to stop, then half-closes it; whoever opened the
+	// connection closes it once the other direction is done too
+	static class Sender extends Transfer {
+		Socket clientSoc;
+		// allocated once and written over and over, its contents don't matter
+		byte[] data;
+		// source for the zero-copy path; null to send from data instead
+		FileChannel file;
+		// where the bytes are counted, the server counts them on the connection's Receiver
+		Transfer owner;
+
+		public Sender(Socket clientSoc, int buffer_len, FileChannel file) {
+			this(clientSoc, buffer_len, file, null);
+		}
+
+		public Sender(Socket clientSoc, int buffer_len, FileChannel file, Transfer owner) {
+			this.clientSoc = clientSoc;
+			this.file = file;
+			this.owner = owner == null ? this : owner;
+			if(file == null)
+				this.data = new byte[buffer_len];
+		}
+
+		public void run() {
+			start = System.currentTimeMillis();
+			try {
+				if(file != null)
+					send_file();
+				else
+					send_buffer();
+			} catch(IOException e) {
+				System.err.println("Error: connection lost: " + e.getMessage());
+			}
+			end = System.currentTimeMillis();
+
+			try {
+				clientSoc.shutdownOutput();
+			} catch(IOException e) { }
+		}
+
+		void send_buffer() throws IOException {
+			OutputStream out = clientSoc.getOutputStream();
+			// keep sending the whole buffer until we are told to stop
+			while(running) {
+				out.write(data);
+				owner.sent += data.length;
+			}
+		}
+
+		// the kernel copies straight from the page cache to the socket, the bytes never enter the heap
+		void send_file() throws IOException {
+			SocketChannel channel = clientSoc.getChannel();
+			long size = file.size();
+			long position = 0;
+			while(running) {
+				long n = file.transferTo(position, size - position, channel);
+				owner.sent += n;
+				position += n;
+				// wrap around and send the file again
+				if(position == size)
+					position = 0;
+			}
+		}
+	}
+
+	// sends one message at a time and waits for the server to echo it back, timing each round trip
+	static class Pinger extends Transfer {
+		Socket clientSoc;
+		byte[] data;
+		Histogram latency = new Histogram();
+
+		public Pinger(Socket clientSoc, int buffer_len) {
+			this.clientSoc = clientSoc;
+			this.data = new byte[buffer_len];
+		}
+
+		public void run() {
+			start = System.currentTimeMillis();
+			try {
+				// small messages would otherwise sit in Nagle's buffer waiting for the previous ack
+				clientSoc.setTcpNoDelay(true);
+				OutputStream out = clientSoc.getOutputStream();
+				DataInputStream in = new DataInputStream(clientSoc.getInputStream());
+				out.write(hello(MODE_ECHO));
+				while(running) {
+					long sent = System.nanoTime();
+					out.write(data);
+					in.readFully(data);
+					latency.record(System.nanoTime() - sent);
+					this.sent += data.length;
+					received += data.length;
+				}
+			} catch(IOException e) {
+				System.err.println("Error: connection lost: " + e.getMessage());
+			}
+			end = System.currentTimeMillis();
+
+			try {
+				clientSoc.close();
+			} catch(IOException e) { }
+		}
+	}
+
+	// reads one connection on the client until the server stops sending
+	static class Drainer extends Transfer {
+		SocketChannel channel;
+		int buffer_len;
+
+		public Drainer(SocketChannel channel, int buffer_len) {
+			this.channel = channel;
+			this.buffer_len = buffer_len;
+		}
+
+		public void run() {
+			start = System.currentTimeMillis();
+			try {
+				drain(channel, ByteBuffer.allocateDirect(buffer_len), this);
+			} catch(IOException e) {
+				System.err.println("Error: connection lost: " + e.getMessage());
+			}
+			end = System.currentTimeMillis();
+		}
+	}
+
+	// serves one connection on the server: drains it until the client closes it, and echoes it back or
+	// sends in the other direction if the client asked for that
+	static class Receiver extends Transfer {
+		SocketChannel clientSoc;
+		int buffer_len;
+		// spare read buffers shared by the connections of a -k server; null to allocate one for this connection
+		Queue<ByteBuffer> buffers;
+
+		public Receiver(SocketChannel clientSoc, int buffer_len) {
+			this(clientSoc, buffer_len, null);
+		}
+
+		public Receiver(SocketChannel clientSoc, int buffer_len, Queue<ByteBuffer> buffers) {
+			this.clientSoc = clientSoc;
+			this.buffer_len = buffer_len;
+			this.buffers = buffers;
+		}
+
+		public void run() {
+			start = System.currentTimeMillis();
+			// a direct buffer lets the channel read without an extra copy through the heap
+			ByteBuffer data = buffers != null ? buffers.poll() : null;
+			if(data == null)
+				data = ByteBuffer.allocateDirect(buffer_len);
+			try{
+
+				// plain streams start straight away with data, which is counted like any other bytes
+				ByteBuffer hello = ByteBuffer.allocate(HELLO_LEN);
+				while(hello.hasRemaining() && clientSoc.read(hello) > 0);
+				int mode = 0;
+				if(!hello.hasRemaining() && hello.getInt(0) == HELLO_MAGIC)
+					mode = hello.getInt(4);
+				else
+					received += hello.position();
+
+				if(mode == MODE_ECHO)
+					echo(data);
+				else if(mode == MODE_REVERSE || mode == MODE_DUPLEX) {
+					// send until the client half-closes, which it does once its test time is up
+					Sender sender = new Sender(clientSoc.socket(), buffer_len, null, this);
+					sender.start();
+					drain(clientSoc, data, this);
+					sender.running = false;
+					sender.join();
+				}
+				else
+					drain(clientSoc, data, this);
+			} catch (IOException e) {
+				// a client that resets is routine for a long-running server, so one line and carry on
+				System.err.println("Error: connection lost: " + e.getMessage());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+
+			// calculate the time of receving all the packages
+			end = System.currentTimeMillis();
+			if(buffers != null) {
+				data.clear();
+				buffers.offer(data);
+			}
+			try {
+				clientSoc.close();
+			} catch(IOException e) { }
+		}
+
+		void echo(ByteBuffer data) throws IOException {
+			clientSoc.socket().setTcpNoDelay(true);
+			int curr_received = 0;
+			while( (curr_received = clientSoc.read(data)) > 0) {
+				received += curr_received;
+				data.flip();
+				while(data.hasRemaining())
+					sent += clientSoc.write(data);
+				data.clear();
+			}
+		}
+	}
+
+	// log-linear histogram in the style of HdrHistogram: values below SUB_BUCKETS are kept exactly, and each
+	// power-of-two range above that is split into SUB_BUCKETS / 2 linear slots, so a reported value is never
+	// off by more than 1 / (SUB_BUCKETS / 2) of itself
+	static class Histogram {
+		static final int SUB_BITS = 7;
+		static final int SUB_BUCKETS = 1 << SUB_BITS;
+		static final int HALF = SUB_BUCKETS / 2;
+
+		long[] counts = new long[SUB_BUCKETS + (64 - SUB_BITS) * HALF];
+		long count;
+		long max;
+
+		static int index(long value) {
+			if(value < SUB_BUCKETS)
+				return (int)value;
+			// shift the value down until it fits in [HALF, SUB_BUCKETS)
+			int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BITS - 1);
+			int sub = (int)(value >>> shift);
+			return SUB_BUCKETS + (shift - 1) * HALF + (sub - HALF);
+		}
+
+		// the largest value that lands in the given slot
+		static long highest(int index) {
+			if(index < SUB_BUCKETS)
+				return index;
+			int shift = (index - SUB_BUCKETS) / HALF + 1;
+			long sub = (index - SUB_BUCKETS) % HALF + HALF;
+			return ((sub + 1) << shift) - 1;
+		}
+
+		void record(long value) {
+			if(value < 0)
+				value = 0;
+			counts[index(value)]++;
+			count++;
+			max = Math.max(max, value);
+		}
+
+		void add(Histogram other) {
+			for(int i = 0; i < counts.length; i++)
+				counts[i] += other.counts[i];
+			count += other.count;
+			max = Math.max(max, other.max);
+		}
+
+		long percentile(double p) {
+			long target = Math.max(1, (long)Math.ceil(p / 100 * count));
+			long seen = 0;
+			for(int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if(seen >= target)
+					return Math.min(highest(i), max);
 			}
+			return max;
+		}
+
+		// e.g. "latency samples=1000 p50=31.231 us p99=..." with values recorded in nanoseconds
+		String summary() {
+			return String.format("latency samples=%d p50=%.3f us p99=%.3f us p99.9=%.3f us max=%.3f us", count,
+					percentile(50) / 1000.0, percentile(99) / 1000.0, percentile(99.9) / 1000.0, max / 1000.0);
+		}
+
+		Sample sample() {
+			Sample sample = new Sample("latency", "round-trip", 0, 0);
+			sample.put("samples", count).put("p50_us", percentile(50) / 1000.0).put("p99_us", percentile(99) / 1000.0)
+					.put("p99.9_us", percentile(99.9) / 1000.0).put("max_us", max / 1000.0);
+			sample.label = null;
+			sample.note = summary();
+			return sample;
+		}
+	}
+
+	// one result: an interval of a run, a single stream, the sum over the streams of a run, a latency
+	// distribution, or the spread over all runs; byte counts are 64-bit so long fast runs don't wrap
+	static class Sample {
+		static final String CSV_HEADER = "run,type,direction,stream,from,to,bytes,seconds,mbps,extra";
+
+		int run = current_run;
+		String type;
+		String direction;
+		int stream = -1;
+		// seconds since the start of the run, interval samples only
+		double from = -1;
+		double to = -1;
+		long bytes;
+		double seconds;
+		// the text format prints "label=... KB rate=... Mbps" followed by note; a sample without a label
+		// prints only the note
+		String label;
+		String note = "";
+		// the same facts as the note, as fields for json and csv
+		Map<String, Object> extra = new LinkedHashMap<String, Object>();
 
-		} catch (IOException e) {
-			e.printStackTrace();
+		public Sample(String type, String direction, long bytes, double seconds) {
+			this.type = type;
+			this.direction = direction;
+			this.bytes = bytes;
+			this.seconds = seconds;
 		}
 
-		// calculate the time of receving all the packages
-		double time = (System.currentTimeMillis() - start) / 1000.0;
-		double mbps = (total_received * 8) / (time*1000);
-		System.out.println("received=" + (total_received/1000) + " KB rate=" + String.format("%.3f", mbps / 1000.0) + " Mbps");
-		return;
+		double mbps() {
+			return seconds > 0 ? (bytes * 8) / (seconds * 1000000.0) : 0;
+		}
+
+		Sample put(String key, Object value) {
+			extra.put(key, value);
+			return this;
+		}
+
+		// adds a field that the text format shows as " key=value"
+		Sample note(String key, Object value) {
+			return note(key, value, key + "=" + value);
+		}
+
+		Sample note(String key, Object value, String text) {
+			put(key, value);
+			note += " " + text;
+			return this;
+		}
+
+		Sample note(String[] pair) {
+			return pair == null ? this : note(pair[0], pair[1]);
+		}
+
+		// e.g. "sent=1000 KB rate=8.000 Mbps"
+		String text() {
+			if(label == null)
+				return note;
+			return label + "=" + (bytes/1000) + " KB rate=" + String.format("%.3f", mbps()) + " Mbps" + note;
+		}
+
+		String json() {
+			StringBuilder out = new StringBuilder("{\"run\":" + run + ",\"type\":" + json_value(type)
+					+ ",\"direction\":" + json_value(direction));
+			if(stream >= 0)
+				out.append(",\"stream\":" + stream);
+			if(from >= 0)
+				out.append(",\"from\":" + json_value(from) + ",\"to\":" + json_value(to));
+			if(label != null)
+				out.append(",\"bytes\":" + bytes + ",\"seconds\":" + json_value(seconds)
+						+ ",\"mbps\":" + json_value(mbps()));
+			for(Map.Entry<String, Object> field : extra.entrySet())
+				out.append("," + json_value(field.getKey()) + ":" + json_value(field.getValue()));
+			return out.append("}").toString();
+		}
+
+		// json and csv are for machines, so their numbers never take the locale's decimal comma; the text
+		// format is for people and keeps it
+		String csv() {
+			StringBuilder fields = new StringBuilder();
+			for(Map.Entry<String, Object> field : extra.entrySet())
+				fields.append(fields.length() > 0 ? ";" : "").append(field.getKey() + "=" + field.getValue());
+			return run + "," + type + "," + direction + "," + (stream >= 0 ? stream : "") + ","
+					+ (from >= 0 ? from + "," + to : ",") + ","
+					+ (label != null ? bytes + "," + seconds + "," + String.format(Locale.ROOT, "%.3f", mbps()) : ",,") + ","
+					+ fields;
+		}
+
+		static String json_value(Object value) {
+			if(value instanceof String)
+				return "\"" + ((String)value).replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+			if(value instanceof Double)
+				return String.format(Locale.ROOT, "%.6f", (Double)value);
+			return String.valueOf(value);
+		}
 	}
 }
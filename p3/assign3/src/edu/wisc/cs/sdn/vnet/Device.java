@@ -1,6 +1,8 @@
 package edu.wisc.cs.sdn.vnet;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import net.floodlightcontroller.packet.Ethernet;
@@ -18,6 +20,13 @@ public abstract class Device
 	/** List of the device's interfaces; maps interface name's to interfaces */
 	protected Map<String,Iface> interfaces;
 	
+	/** The device's interfaces, indexed by Iface.getIndex() */
+	protected List<Iface> ifaceList;
+	
+	/** Snapshot of the interfaces for lock-free lookups on the packet path;
+	 *  replaced whenever the interfaces change */
+	private volatile IfaceTable ifaceTable;
+	
 	/** PCAP dump file for logging all packets sent/received by the device;
 	 *  null if packets should not be logged */
 	private DumpFile logfile;
@@ -35,6 +44,8 @@ public abstract class Device
 		this.host = host;
 		this.logfile = logfile;
 		this.interfaces = new HashMap<String,Iface>();
+		this.ifaceList = new ArrayList<Iface>();
+		this.ifaceTable = new IfaceTable(this.ifaceList);
 		this.vnsComm = null;
 	}
 	
@@ -86,11 +97,54 @@ public abstract class Device
 	 */
 	public Iface addInterface(String ifaceName)
 	{
-		Iface iface = new Iface(ifaceName);
+		Iface iface = new Iface(ifaceName, this.ifaceList.size());
 		this.interfaces.put(ifaceName, iface);
+		this.ifaceList.add(iface);
+		this.publishInterfaces();
 		return iface;
 	}
 	
+	/**
+	 * Rebuild the snapshot of the interfaces used on the packet path. Call
+	 * after changing any interface's address.
+	 */
+	public void publishInterfaces()
+	{ this.ifaceTable = new IfaceTable(this.ifaceList); }
+	
+	/**
+	 * @return current snapshot of the device's interfaces
+	 */
+	public IfaceTable getInterfaceTable()
+	{ return this.ifaceTable; }
+	
+	/**
+	 * Gets an interface on the device by its index.
+	 * @param index index of the desired interface
+	 * @return requested interface; null if there is no such index
+	 */
+	public Iface getInterface(int index)
+	{ return this.ifaceTable.get(index); }
+	
+	/**
+	 * Gets the interface on the device that has an IP address.
+	 * @param ip the IP address
+	 * @return interface with the address; null if the address is not one of
+	 *         the device's
+	 */
+	public Iface getInterfaceByIp(int ip)
+	{ return this.ifaceTable.getByIp(ip); }
+	
+	/**
+	 * Gets an interface on the device by the interface's name, as it appears
+	 * NUL-padded in a packet from the VNS server.
+	 * @param buf buffer holding the name
+	 * @param offset position of the name in the buffer
+	 * @param len length of the name field
+	 * @return requested interface; null if no interface has the given name
+	 */
+	public Iface getInterface(byte[] buf, int offset, int len)
+	{ return this.ifaceTable.getByName(buf, offset, len); }
+	
 	/**
 	 * Gets an interface on the device by the interface's name.
 	 * @param ifaceName name of the desired interface
@@ -108,7 +162,40 @@ public abstract class Device
 	 * @return true if the packet was sent successfully, otherwise false
 	 */
 	public boolean sendPacket(Ethernet etherPacket, Iface iface)
-	{ return this.vnsComm.sendPacket(etherPacket, iface.getName()); }
+	{ return this.vnsComm.sendPacket(etherPacket, iface); }
+	
+	/**
+	 * Send an already serialized Ethernet frame out a specific interface.
+	 * @param buf buffer holding the frame; it may be reused once this returns
+	 * @param offset position of the frame in the buffer
+	 * @param len length of the frame
+	 * @param iface interface on which to send the frame
+	 * @return true if the frame was sent successfully, otherwise false
+	 */
+	public boolean sendFrame(byte[] buf, int offset, int len, Iface iface)
+	{ return this.vnsComm.sendFrame(buf, offset, len, iface.getNameBytes()); }
 	
 	public abstract void handlePacket(Ethernet etherPacket, Iface inIface);
+	
+	/**
+	 * @return true if handlePacket may be called from several threads at
+	 *         once; devices must opt in before they are given a pipeline
+	 */
+	public boolean isConcurrent()
+	{ return false; }
+	
+	/**
+	 * Handle a frame received from the VNS server, still in its receive
+	 * buffer. Devices that can work on the raw bytes override this; by default
+	 * the frame is parsed and passed to handlePacket. Either way the frame must
+	 * be released once it is no longer needed.
+	 * @param frame the frame that was received
+	 */
+	public void handleFrame(Frame frame)
+	{
+		Ethernet etherPacket = frame.toEthernet();
+		Iface inIface = frame.getInIface();
+		frame.release();
+		this.handlePacket(etherPacket, inIface);
+	}
 }
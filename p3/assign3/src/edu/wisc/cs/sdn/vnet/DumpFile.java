@@ -1,70 +1,263 @@
 package edu.wisc.cs.sdn.vnet;
 
-import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.time.Instant;
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.floodlightcontroller.packet.Ethernet;
 
+/**
+ * PCAP log of the frames a device sends and receives. The forwarding threads
+ * write each record, header and frame, straight into a ring in one large
+ * direct buffer, and a background thread writes out everything in the ring
+ * at once; logging never waits on the disk unless the ring fills up and the
+ * file was opened to block rather than drop, and it allocates nothing.
+ *
+ * The log can be rotated by size or age, in which case the files are named
+ * log_file.0, log_file.1, and so on; with a ring size set, the oldest files
+ * are deleted so the log never takes much more than that much disk.
+ */
 public class DumpFile
 {
 	private static final int TCPDUMP_MAGIC = 0xa1b2c3d4;
+	private static final int TCPDUMP_MAGIC_NSEC = 0xa1b23c4d;
 	private static final short PCAP_VERSION_MAJOR = 2;
 	private static final short PCAP_VERSION_MINOR = 4;
 	private static final int THIS_ZONE = 0;
 	private static final int SIG_FIGS = 0;
 	private static final int SNAP_LEN = 65535;
 	private static final int LINKTYPE_ETHERNET = 1;
-	
+	private static final int FILE_HEADER_LEN = 24;
+	private static final int RECORD_HEADER_LEN = 16;
+
+	/** Default number of frames that may wait for the writer thread */
+	public static final int DEFAULT_QUEUE_LEN = 4096;
+
+	/** Ring space per frame that may wait: a full-size Ethernet frame */
+	private static final int QUEUE_SLOT_LEN = RECORD_HEADER_LEN + 1514;
+
+	/** Smallest file a ring of files is split into */
+	private static final int MIN_FILE_LEN = 1 << 20;
+
+	private String filename;
 	private FileOutputStream fileStream;
-	DataOutputStream outStream;
-	
-	private DumpFile(FileOutputStream fileStream)
+	private FileChannel channel;
+
+	/** Write nanosecond rather than microsecond timestamps */
+	private boolean nanosecond;
+
+	/** Start a new file once the current one would grow past this; 0 never */
+	private long rotateBytes;
+
+	/** Start a new file once the current one is this old; 0 never */
+	private long rotateNanos;
+
+	/** Delete the oldest files once all of them together exceed this; 0 never */
+	private long ringBytes;
+
+	/** Index of the next file to open, when rotating */
+	private int fileIndex;
+
+	/** Bytes written to the current file */
+	private long fileBytes;
+
+	/** When the current file was started, on the System.nanoTime() clock */
+	private long fileStarted;
+
+	/** Files written so far, oldest first */
+	private LinkedList<File> files;
+
+	/** Wall clock time, in nanoseconds since the epoch, at baseNanoTime */
+	private long baseWallNanos;
+	private long baseNanoTime;
+
+	/** Complete PCAP records (header and frame) waiting to be written, from
+	 *  position tail up to position head; positions only grow, and are
+	 *  taken modulo the ring's capacity. All guarded by queueLock. */
+	private ByteBuffer ring;
+	private long head;
+	private long tail;
+	private final Object queueLock = new Object();
+
+	/** Drop frames when the queue is full, instead of waiting for room */
+	private boolean dropWhenFull;
+
+	/** Number of frames dropped because the queue was full */
+	private AtomicLong dropped;
+
+	private Thread writer;
+
+	/** No more frames are logged once set; guarded by queueLock */
+	private boolean closed;
+
+	private DumpFile(String filename, int queueLen, boolean dropWhenFull,
+			boolean nanosecond, long rotateBytes, long rotateSeconds,
+			long ringBytes)
 	{
-		this.fileStream = fileStream;
-		outStream = new DataOutputStream(fileStream);
+		this.filename = filename;
+		// Always room for at least two of the largest records
+		this.ring = ByteBuffer.allocateDirect(Math.max(queueLen * QUEUE_SLOT_LEN,
+				2 * (RECORD_HEADER_LEN + SNAP_LEN)));
+		this.head = 0;
+		this.tail = 0;
+		this.dropWhenFull = dropWhenFull;
+		this.dropped = new AtomicLong();
+		this.closed = false;
+		this.nanosecond = nanosecond;
+		this.ringBytes = ringBytes;
+		this.rotateNanos = rotateSeconds * 1000000000L;
+		// A ring needs files to delete, so split it in eight if not told otherwise
+		if (ringBytes > 0 && rotateBytes <= 0)
+		{ rotateBytes = Math.max(ringBytes / 8, MIN_FILE_LEN); }
+		this.rotateBytes = rotateBytes;
+		this.files = new LinkedList<File>();
+		this.fileIndex = 0;
+
+		// Every timestamp comes from the monotonic clock, offset once from the
+		// wall clock, so seconds and fractions always agree and never go back
+		Instant now = Instant.now();
+		this.baseNanoTime = System.nanoTime();
+		this.baseWallNanos = now.getEpochSecond() * 1000000000L + now.getNano();
 	}
-	
-	private DumpFile()
+
+	public static DumpFile open(String filename)
+	{ return open(filename, DEFAULT_QUEUE_LEN, false); }
+
+	public static DumpFile open(String filename, int queueLen,
+			boolean dropWhenFull)
+	{ return open(filename, queueLen, dropWhenFull, false, 0, 0, 0); }
+
+	/**
+	 * Open a PCAP dump file and start its writer thread.
+	 * @param filename file to write to, or "-" for standard output
+	 * @param queueLen number of full-size frames that may wait for the writer
+	 *        thread
+	 * @param dropWhenFull drop frames when the queue is full, rather than
+	 *        block the thread logging them
+	 * @param nanosecond write nanosecond-resolution PCAP
+	 * @param rotateBytes start a new file when the current one reaches this
+	 *        many bytes; 0 to never rotate by size
+	 * @param rotateSeconds start a new file when the current one is this many
+	 *        seconds old; 0 to never rotate by age
+	 * @param ringBytes delete the oldest files once the log takes more than
+	 *        this many bytes; 0 to keep everything
+	 * @return the dump file, or null if it could not be opened
+	 */
+	public static DumpFile open(String filename, int queueLen,
+			boolean dropWhenFull, boolean nanosecond, long rotateBytes,
+			long rotateSeconds, long ringBytes)
 	{
-		this.fileStream = null;
-		outStream = new DataOutputStream(System.out);
+		if (filename.equals("-")
+				&& (rotateBytes > 0 || rotateSeconds > 0 || ringBytes > 0))
+		{
+			System.err.println("Cannot rotate a log written to standard output");
+			return null;
+		}
+
+		DumpFile dumpFile = new DumpFile(filename, queueLen, dropWhenFull,
+				nanosecond, rotateBytes, rotateSeconds, ringBytes);
+		if (!dumpFile.openFile())
+		{ return null; }
+		dumpFile.startWriter();
+		return dumpFile;
 	}
-	
-	public static DumpFile open(String filename)
+
+	private boolean isRotating()
+	{ return (this.rotateBytes > 0 || this.rotateNanos > 0); }
+
+	/**
+	 * Open the next file of the log and write its header.
+	 * @return false if the file could not be opened
+	 */
+	private boolean openFile()
 	{
-		DumpFile dumpFile = null;
-		if (filename.equals("-"))
-		{ dumpFile = new DumpFile(); }
+		if (this.filename.equals("-"))
+		{
+			this.fileStream = null;
+			this.channel = new FileOutputStream(FileDescriptor.out).getChannel();
+		}
 		else
 		{
-			try 
-			{ dumpFile = new DumpFile(new FileOutputStream(filename)); } 
-			catch (FileNotFoundException e) 
+			String name = this.filename;
+			if (this.isRotating())
+			{ name = this.filename + "." + this.fileIndex; }
+			try
+			{ this.fileStream = new FileOutputStream(name); }
+			catch (FileNotFoundException e)
 			{
-				System.err.println("Cannot open " + filename);
-				return null;
+				System.err.println("Cannot open " + name);
+				return false;
 			}
+			this.channel = this.fileStream.getChannel();
+			this.files.add(new File(name));
+			this.fileIndex++;
 		}
-		
-		if (!dumpFile.writeHeader())
-		{ return null; }
-		return dumpFile;
+
+		this.fileBytes = 0;
+		this.fileStarted = System.nanoTime();
+		return this.writeHeader();
 	}
-	
+
+	/**
+	 * Close the current file and start the next, deleting the oldest files
+	 * if the log has outgrown its ring.
+	 */
+	private void rotate()
+	{
+		FileOutputStream oldStream = this.fileStream;
+		FileChannel oldChannel = this.channel;
+		long oldBytes = this.fileBytes;
+		long oldStarted = this.fileStarted;
+		if (!this.openFile())
+		{
+			// Keep appending to the old file rather than lose frames
+			this.fileStream = oldStream;
+			this.channel = oldChannel;
+			this.fileBytes = oldBytes;
+			this.fileStarted = oldStarted;
+			return;
+		}
+		try
+		{ oldStream.close(); }
+		catch (IOException e) { }
+
+		if (this.ringBytes <= 0)
+		{ return; }
+		long total = 0;
+		for (File file : this.files)
+		{ total += file.length(); }
+		// Make room for the new file to fill up, but always keep it
+		while (total + this.rotateBytes > this.ringBytes
+				&& this.files.size() > 1)
+		{
+			File oldest = this.files.removeFirst();
+			total -= oldest.length();
+			oldest.delete();
+		}
+	}
+
 	private boolean writeHeader()
-	{        
-		try 
-		{
-			this.outStream.writeInt(TCPDUMP_MAGIC);
-			this.outStream.writeShort(PCAP_VERSION_MAJOR);
-			this.outStream.writeShort(PCAP_VERSION_MINOR);
-			this.outStream.writeInt(THIS_ZONE);
-			this.outStream.writeInt(SIG_FIGS);
-			this.outStream.writeInt(SNAP_LEN);
-			this.outStream.writeInt(LINKTYPE_ETHERNET);
-	        this.outStream.flush();
+	{
+		ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_LEN);
+		header.putInt(this.nanosecond ? TCPDUMP_MAGIC_NSEC : TCPDUMP_MAGIC);
+		header.putShort(PCAP_VERSION_MAJOR);
+		header.putShort(PCAP_VERSION_MINOR);
+		header.putInt(THIS_ZONE);
+		header.putInt(SIG_FIGS);
+		header.putInt(SNAP_LEN);
+		header.putInt(LINKTYPE_ETHERNET);
+		header.flip();
+		try
+		{
+			while (header.hasRemaining())
+			{ this.fileBytes += this.channel.write(header); }
 	        return true;
 		}
 		catch (IOException e)
@@ -72,35 +265,240 @@ public class DumpFile
 			e.printStackTrace();
 			return false;
 		}
+	}
 
+	private void startWriter()
+	{
+		this.writer = new Thread(new Runnable()
+		{
+			public void run()
+			{ writeRecords(); }
+		}, "pcap-writer");
+		this.writer.setDaemon(true);
+		this.writer.start();
 	}
-	
+
+	/**
+	 * Log a frame.
+	 * @param etherPacket the frame
+	 */
 	public void dump(Ethernet etherPacket)
 	{
 		byte[] buf = etherPacket.serialize();
-		
-		int sec = (int)(System.currentTimeMillis()/1000);
-		int usec = (int)((System.currentTimeMillis() % 1000)*1000);
+		this.dump(buf, 0, buf.length);
+	}
+
+	/**
+	 * Log a frame that has already been serialized. The bytes are copied, so
+	 * the caller may reuse its buffer as soon as this returns.
+	 * @param buf buffer holding the frame
+	 * @param offset position of the frame in the buffer
+	 * @param len length of the frame
+	 */
+	public void dump(byte[] buf, int offset, int len)
+	{
+		long now = this.baseWallNanos + (System.nanoTime() - this.baseNanoTime);
+		int fraction = (int)(now % 1000000000L);
+		if (!this.nanosecond)
+		{ fraction /= 1000; }
+		int captured = Math.min(len, SNAP_LEN);
+		int recordLen = RECORD_HEADER_LEN + captured;
+
+		synchronized(this.queueLock)
+		{
+			while (this.head + recordLen - this.tail > this.ring.capacity())
+			{
+				if (this.dropWhenFull || this.closed)
+				{
+					this.dropped.incrementAndGet();
+					return;
+				}
+				try
+				{ this.queueLock.wait(); }
+				catch (InterruptedException e)
+				{
+					this.dropped.incrementAndGet();
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+			// The writer thread has gone, or is about to
+			if (this.closed)
+			{
+				this.dropped.incrementAndGet();
+				return;
+			}
+
+			long pos = this.head;
+			pos = this.putInt(pos, (int)(now / 1000000000L));
+			pos = this.putInt(pos, fraction);
+			pos = this.putInt(pos, captured);
+			pos = this.putInt(pos, len);
+			int at = (int)(pos % this.ring.capacity());
+			int first = Math.min(captured, this.ring.capacity() - at);
+			this.ring.position(at);
+			this.ring.put(buf, offset, first);
+			if (first < captured)
+			{
+				this.ring.position(0);
+				this.ring.put(buf, offset + first, captured - first);
+			}
+
+			if (this.head == this.tail)
+			{ this.queueLock.notifyAll(); }
+			this.head += recordLen;
+		}
+	}
+
+	/** Write an int at a position in the ring; called with queueLock held */
+	private long putInt(long pos, int value)
+	{
+		for (int shift = 24; shift >= 0; shift -= 8)
+		{
+			this.ring.put((int)(pos % this.ring.capacity()), (byte)(value >>> shift));
+			pos++;
+		}
+		return pos;
+	}
+
+	/** Read an int at a position in the ring */
+	private static int getInt(ByteBuffer ring, long pos)
+	{
+		int value = 0;
+		for (int i = 0; i < 4; i++)
+		{ value = (value << 8) | (ring.get((int)((pos + i) % ring.capacity())) & 0xff); }
+		return value;
+	}
+
+	/**
+	 * @return number of frames dropped because the writer fell behind
+	 */
+	public long getDropped()
+	{ return this.dropped.get(); }
+
+	/**
+	 * Body of the writer thread: write out everything in the ring at once,
+	 * splitting it only where the file is due to be rotated, then free the
+	 * space and wait for more.
+	 */
+	private void writeRecords()
+	{
+		// A view of its own, so the writer never moves the loggers' position
+		ByteBuffer view = this.ring.duplicate();
+		while (true)
+		{
+			long start;
+			long end;
+			synchronized(this.queueLock)
+			{
+				while (this.head == this.tail && !this.closed)
+				{
+					try
+					{ this.queueLock.wait(); }
+					catch (InterruptedException e)
+					{ return; }
+				}
+				if (this.head == this.tail)
+				{ return; }
+				start = this.tail;
+				end = this.head;
+			}
+
+			// Records in [start, end) are complete and no logger touches them
+			long from = start;
+			for (long pos = start; pos < end; )
+			{
+				int recordLen = RECORD_HEADER_LEN + getInt(view, pos + 8);
+				if (this.dueToRotate((int)(pos - from), recordLen))
+				{
+					this.writeRange(view, from, pos);
+					this.rotate();
+					from = pos;
+				}
+				pos += recordLen;
+			}
+			this.writeRange(view, from, end);
+
+			synchronized(this.queueLock)
+			{
+				this.tail = end;
+				this.queueLock.notifyAll();
+			}
+		}
+	}
+
+	/** Write the ring from position from up to position to */
+	private void writeRange(ByteBuffer view, long from, long to)
+	{
+		int capacity = view.capacity();
+		while (from < to)
+		{
+			int at = (int)(from % capacity);
+			int len = (int)Math.min(to - from, capacity - at);
+			view.limit(at + len);
+			view.position(at);
+			this.writeFully(view);
+			from += len;
+		}
+		view.clear();
+	}
+
+	/**
+	 * @param batched bytes waiting in the batch for the current file
+	 * @param len length of the next record
+	 * @return true if the next record should start a new file
+	 */
+	private boolean dueToRotate(int batched, int len)
+	{
+		// Never leave a file with nothing but its header
+		if (this.fileBytes + batched <= FILE_HEADER_LEN)
+		{ return false; }
+		if (this.rotateBytes > 0
+				&& this.fileBytes + batched + len > this.rotateBytes)
+		{ return true; }
+		return (this.rotateNanos > 0
+				&& System.nanoTime() - this.fileStarted >= this.rotateNanos);
+	}
+
+	private void writeFully(ByteBuffer buf)
+	{
 		try
 		{
-			this.outStream.writeInt(sec);
-			this.outStream.writeInt(usec);
-			this.outStream.writeInt(buf.length);
-			this.outStream.writeInt(buf.length);
-			this.outStream.write(buf);
-			this.outStream.flush();
+			while (buf.hasRemaining())
+			{ this.fileBytes += this.channel.write(buf); }
 		}
 		catch (IOException e)
 		{ e.printStackTrace(); }
 	}
-	
+
+	/**
+	 * Write out every frame logged so far and close the file.
+	 */
 	public void close()
 	{
+		synchronized(this.queueLock)
+		{
+			if (this.closed)
+			{ return; }
+			this.closed = true;
+			this.queueLock.notifyAll();
+		}
+
+		// The writer drains the ring before it exits
+		try
+		{ this.writer.join(); }
+		catch (InterruptedException e) { }
+
+		if (this.dropped.get() > 0)
+		{
+			System.err.println("Dropped " + this.dropped.get()
+					+ " frames from the packet log");
+		}
+
 		try
 		{
-			this.outStream.flush();
 			if (this.fileStream != null)
-			{ this.outStream.close(); }
+			{ this.fileStream.close(); }
 		}
 		catch(IOException e) { }
 	}
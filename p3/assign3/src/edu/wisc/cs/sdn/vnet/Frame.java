@@ -0,0 +1,157 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.floodlightcontroller.packet.Ethernet;
+
+/**
+ * A frame received from the VNS server, left in the buffer it was read into.
+ * Frames and their buffers are pooled: whoever ends up holding a frame must
+ * call release() once done with it, and must not touch it afterwards.
+ */
+public class Frame
+{
+	/** Largest command the VNS server sends */
+	public static final int MAX_LEN = 10000;
+
+	/** Most frames kept in the pool; any more are left to the collector */
+	private static final int POOL_SIZE = 256;
+
+	private static final ConcurrentLinkedQueue<Frame> pool =
+			new ConcurrentLinkedQueue<Frame>();
+	private static final AtomicInteger pooled = new AtomicInteger();
+
+	/** Buffer holding the whole VNS command the frame arrived in */
+	private ByteBuffer buf;
+
+	/** Position of the Ethernet frame in the buffer */
+	private int offset;
+
+	/** Length of the Ethernet frame */
+	private int length;
+
+	/** Interface on which the frame was received */
+	private Iface inIface;
+
+	private Frame()
+	{ this.buf = ByteBuffer.allocate(MAX_LEN); }
+
+	/**
+	 * @return a frame with an empty buffer, from the pool if there is one
+	 */
+	public static Frame acquire()
+	{
+		Frame frame = pool.poll();
+		if (null == frame)
+		{ return new Frame(); }
+		pooled.decrementAndGet();
+		frame.buf.clear();
+		return frame;
+	}
+
+	/**
+	 * Return the frame and its buffer to the pool.
+	 */
+	public void release()
+	{
+		this.inIface = null;
+		if (pooled.incrementAndGet() <= POOL_SIZE)
+		{ pool.offer(this); }
+		else
+		{ pooled.decrementAndGet(); }
+	}
+
+	/**
+	 * @return buffer holding the command the frame arrived in; its backing
+	 *         array holds the frame at getOffset()
+	 */
+	public ByteBuffer getBuffer()
+	{ return this.buf; }
+
+	public byte[] getData()
+	{ return this.buf.array(); }
+
+	public int getOffset()
+	{ return this.offset; }
+
+	public int getLength()
+	{ return this.length; }
+
+	public Iface getInIface()
+	{ return this.inIface; }
+
+	/**
+	 * @return index of the interface on which the frame was received
+	 */
+	public int getInIfaceIndex()
+	{ return this.inIface.getIndex(); }
+
+	/**
+	 * Set where the Ethernet frame lies in the buffer, and where it came from.
+	 */
+	public void set(int offset, int length, Iface inIface)
+	{
+		this.offset = offset;
+		this.length = length;
+		this.inIface = inIface;
+	}
+
+	/**
+	 * @return hash of the frame's flow: the addresses, protocol and ports of
+	 *         an IPv4 packet (without ports if it is a fragment), or the MAC
+	 *         addresses of anything else
+	 */
+	public int flowHash()
+	{
+		byte[] data = this.buf.array();
+		int end = this.offset + this.length;
+		int pos = this.offset + 12;
+		if (pos + 2 > end)
+		{ return hashBytes(data, this.offset, end, 0); }
+		
+		// Skip a VLAN tag
+		int etherType = ((data[pos] & 0xff) << 8) | (data[pos + 1] & 0xff);
+		if (0x8100 == etherType && pos + 6 <= end)
+		{
+			pos += 4;
+			etherType = ((data[pos] & 0xff) << 8) | (data[pos + 1] & 0xff);
+		}
+		int ip = pos + 2;
+		if (etherType != Ethernet.TYPE_IPv4 || ip + 20 > end)
+		{ return hashBytes(data, this.offset, this.offset + 12, 0); }
+		
+		// Source and destination address, then protocol
+		int hash = hashBytes(data, ip + 12, ip + 20, data[ip + 9]);
+		
+		// Ports, only if the packet is not fragmented: later fragments have
+		// none, so all fragments of a datagram hash alike without them
+		int headerLen = (data[ip] & 0x0f) * 4;
+		boolean unfragmented = (0 == (((data[ip + 6] & 0x3f) << 8) 
+				| (data[ip + 7] & 0xff)));
+		int protocol = data[ip + 9];
+		if (unfragmented && ip + headerLen + 4 <= end
+				&& (6 == protocol || 17 == protocol))
+		{ hash = hashBytes(data, ip + headerLen, ip + headerLen + 4, hash); }
+		return hash;
+	}
+	
+	private static int hashBytes(byte[] data, int from, int to, int hash)
+	{
+		for (int i = from; i < to; i++)
+		{ hash = 31 * hash + data[i]; }
+		return hash ^ (hash >>> 16);
+	}
+	
+	/**
+	 * @return the frame parsed into a full Ethernet packet, which does not
+	 *         refer to the frame's buffer
+	 */
+	public Ethernet toEthernet()
+	{
+		Ethernet etherPacket = new Ethernet();
+		etherPacket.deserialize(this.buf.array(), this.offset, this.length);
+		return etherPacket;
+	}
+}
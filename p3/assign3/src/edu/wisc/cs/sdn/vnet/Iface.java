@@ -10,13 +10,24 @@ import net.floodlightcontroller.packet.MACAddress;
 public class Iface 
 {
 	private String name;
+	private byte[] nameBytes;
+	private int index;
 	private MACAddress macAddress;
 	private int ipAddress;
     private int subnetMask;
 	
 	public Iface(String name)
+	{ this(name, -1); }
+	
+	/**
+	 * @param name name of the interface
+	 * @param index position of the interface among its device's interfaces
+	 */
+	public Iface(String name, int index)
 	{
 		this.name = name;
+		this.nameBytes = name.getBytes();
+		this.index = index;
 		this.macAddress = null;
 		this.ipAddress = 0;
 	}
@@ -24,6 +35,32 @@ public class Iface
 	public String getName()
 	{ return this.name; }
 	
+	public int getIndex()
+	{ return this.index; }
+	
+	public byte[] getNameBytes()
+	{ return this.nameBytes; }
+	
+	/**
+	 * Check the interface's name against a NUL-padded name field, without
+	 * decoding the field into a string.
+	 * @param buf buffer holding the name field
+	 * @param offset position of the field in the buffer
+	 * @param len length of the field
+	 */
+	public boolean nameMatches(byte[] buf, int offset, int len)
+	{
+		if (this.nameBytes.length > len)
+		{ return false; }
+		for (int i = 0; i < this.nameBytes.length; i++)
+		{
+			if (buf[offset + i] != this.nameBytes[i])
+			{ return false; }
+		}
+		return (this.nameBytes.length == len 
+				|| 0 == buf[offset + this.nameBytes.length]);
+	}
+	
 	public void setMacAddress(MACAddress mac)
 	{ this.macAddress = mac; }
 	
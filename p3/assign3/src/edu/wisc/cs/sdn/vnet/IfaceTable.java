@@ -0,0 +1,110 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.util.List;
+
+/**
+ * An immutable snapshot of a device's interfaces, indexed by interface index
+ * and by IP address. A new table is built whenever the interfaces change, so
+ * packet handling threads can read it without locks.
+ */
+public class IfaceTable
+{
+	/** Interfaces, by Iface.getIndex() */
+	private Iface[] byIndex;
+
+	/** Open-addressed hash of interface IP addresses; 0 marks a free slot */
+	private int[] ipKeys;
+	private Iface[] ipValues;
+	private int ipMask;
+
+	/**
+	 * Build a table from a device's interfaces.
+	 * @param ifaces the interfaces, in index order
+	 */
+	public IfaceTable(List<Iface> ifaces)
+	{
+		this.byIndex = ifaces.toArray(new Iface[ifaces.size()]);
+
+		// Keep the hash at most half full so probes stay short
+		int size = 4;
+		while (size < 2 * this.byIndex.length)
+		{ size <<= 1; }
+		this.ipKeys = new int[size];
+		this.ipValues = new Iface[size];
+		this.ipMask = size - 1;
+		for (Iface iface : this.byIndex)
+		{
+			int ip = iface.getIpAddress();
+			if (0 == ip)
+			{ continue; }
+			int slot = slot(ip);
+			while (this.ipKeys[slot] != 0 && this.ipKeys[slot] != ip)
+			{ slot = (slot + 1) & this.ipMask; }
+			// The first interface with an address keeps it
+			if (0 == this.ipKeys[slot])
+			{
+				this.ipKeys[slot] = ip;
+				this.ipValues[slot] = iface;
+			}
+		}
+	}
+
+	private int slot(int ip)
+	{
+		int hash = ip * 0x9e3779b9;
+		return (hash ^ (hash >>> 16)) & this.ipMask;
+	}
+
+	/**
+	 * @return number of interfaces
+	 */
+	public int size()
+	{ return this.byIndex.length; }
+
+	/**
+	 * @param index index of the desired interface
+	 * @return requested interface; null if there is no such index
+	 */
+	public Iface get(int index)
+	{
+		if (index < 0 || index >= this.byIndex.length)
+		{ return null; }
+		return this.byIndex[index];
+	}
+
+	/**
+	 * @param ip an IP address
+	 * @return interface with that address; null if the address is not local
+	 */
+	public Iface getByIp(int ip)
+	{
+		if (0 == ip)
+		{ return null; }
+		int slot = slot(ip);
+		while (this.ipKeys[slot] != 0)
+		{
+			if (this.ipKeys[slot] == ip)
+			{ return this.ipValues[slot]; }
+			slot = (slot + 1) & this.ipMask;
+		}
+		return null;
+	}
+
+	/**
+	 * Find an interface by the name in a packet from the VNS server, without
+	 * decoding the name.
+	 * @param buf buffer holding the NUL-padded name
+	 * @param offset position of the name in the buffer
+	 * @param len length of the name field
+	 * @return requested interface; null if no interface has the given name
+	 */
+	public Iface getByName(byte[] buf, int offset, int len)
+	{
+		for (Iface iface : this.byIndex)
+		{
+			if (iface.nameMatches(buf, offset, len))
+			{ return iface; }
+		}
+		return null;
+	}
+}
@@ -0,0 +1,121 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Leveled logging for the devices. Messages below the current level are
+ * never formatted: callers on the packet path pass a Supplier, which is only
+ * called if the message will be printed. Per-packet messages can further be
+ * sampled, so only one packet in every N is traced.
+ */
+public class Log
+{
+	public static final int ERROR = 0;
+	public static final int WARN = 1;
+	public static final int INFO = 2;
+	public static final int DEBUG = 3;
+	public static final int TRACE = 4;
+
+	private static final String[] NAMES =
+			{ "error", "warn", "info", "debug", "trace" };
+
+	/** Most detailed level printed; INFO formats nothing per packet */
+	private static volatile int level = INFO;
+
+	/** Trace one in this many packets */
+	private static volatile long sampleRate = 1;
+
+	private static final AtomicLong packets = new AtomicLong();
+
+	/**
+	 * @param name name of a level, such as "debug"
+	 * @return the level; -1 if there is no level with that name
+	 */
+	public static int parseLevel(String name)
+	{
+		for (int i = 0; i < NAMES.length; i++)
+		{
+			if (NAMES[i].equalsIgnoreCase(name))
+			{ return i; }
+		}
+		return -1;
+	}
+
+	public static void setLevel(int newLevel)
+	{ level = newLevel; }
+
+	public static int getLevel()
+	{ return level; }
+
+	/**
+	 * @param rate trace only one in this many packets; 1 traces every packet
+	 */
+	public static void setSampleRate(long rate)
+	{ sampleRate = Math.max(1, rate); }
+
+	/**
+	 * @return true if messages at the level are printed
+	 */
+	public static boolean isEnabled(int msgLevel)
+	{ return msgLevel <= level; }
+
+	/**
+	 * Decide whether to trace the packet about to be handled. Call once per
+	 * packet and pass the result to packet().
+	 * @return true if this packet's messages should be printed
+	 */
+	public static boolean samplePacket()
+	{
+		if (level < DEBUG)
+		{ return false; }
+		long rate = sampleRate;
+		return (1 == rate || 0 == packets.incrementAndGet() % rate);
+	}
+
+	/**
+	 * Print a message about a packet, if the packet was sampled.
+	 * @param sampled result of samplePacket() for the packet
+	 * @param msg supplies the message
+	 */
+	public static void packet(boolean sampled, Supplier<String> msg)
+	{
+		if (sampled)
+		{ print(DEBUG, msg.get()); }
+	}
+
+	public static void error(String msg)
+	{ log(ERROR, msg); }
+
+	public static void warn(String msg)
+	{ log(WARN, msg); }
+
+	public static void info(String msg)
+	{ log(INFO, msg); }
+
+	public static void debug(Supplier<String> msg)
+	{ log(DEBUG, msg); }
+
+	public static void trace(Supplier<String> msg)
+	{ log(TRACE, msg); }
+
+	public static void log(int msgLevel, String msg)
+	{
+		if (isEnabled(msgLevel))
+		{ print(msgLevel, msg); }
+	}
+
+	public static void log(int msgLevel, Supplier<String> msg)
+	{
+		if (isEnabled(msgLevel))
+		{ print(msgLevel, msg.get()); }
+	}
+
+	private static void print(int msgLevel, String msg)
+	{
+		if (msgLevel <= WARN)
+		{ System.err.println(msg); }
+		else
+		{ System.out.println(msg); }
+	}
+}
@@ -1,5 +1,7 @@
 package edu.wisc.cs.sdn.vnet;
 
+import edu.wisc.cs.sdn.vnet.rt.ArpResolver;
+import edu.wisc.cs.sdn.vnet.rt.FibCache;
 import edu.wisc.cs.sdn.vnet.rt.Router;
 import edu.wisc.cs.sdn.vnet.sw.Switch;
 import edu.wisc.cs.sdn.vnet.vns.Command;
@@ -17,6 +19,21 @@ public class Main
 		String routeTableFile = null;
 		String arpCacheFile = null;
 		String logfile = null;
+		boolean logDrop = false;
+		boolean logNanos = false;
+		long logRotateBytes = 0;
+		long logRotateSeconds = 0;
+		long logRingBytes = 0;
+		int maxBatch = VNSComm.DEFAULT_MAX_BATCH;
+		long maxDelay = VNSComm.DEFAULT_MAX_DELAY;
+		int workers = 1;
+		int fibSize = FibCache.DEFAULT_SIZE;
+		int arpQueueLen = ArpResolver.DEFAULT_QUEUE_LEN;
+		long arpQueueBytes = ArpResolver.DEFAULT_QUEUE_BYTES;
+		boolean arpDropOldest = true;
+		int logLevel = Log.INFO;
+		long logSample = 1;
+		Pipeline pipeline = null;
 		short port = DEFAULT_PORT;
 		VNSComm vnsComm = null;
 		Device dev = null;
@@ -38,6 +55,49 @@ public class Main
 			{ server = args[++i]; }
 			else if (arg.equals("-l"))
 			{ logfile = args[++i]; }
+			else if (arg.equals("-D"))
+			{ logDrop = true; }
+			else if (arg.equals("-N"))
+			{ logNanos = true; }
+			else if (arg.equals("-C"))
+			{ logRotateBytes = Long.parseLong(args[++i]) * 1000000; }
+			else if (arg.equals("-G"))
+			{ logRotateSeconds = Long.parseLong(args[++i]); }
+			else if (arg.equals("-W"))
+			{ logRingBytes = Long.parseLong(args[++i]) * 1000000; }
+			else if (arg.equals("-b"))
+			{ maxBatch = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-w"))
+			{ maxDelay = Long.parseLong(args[++i]); }
+			else if (arg.equals("-t"))
+			{ workers = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-F"))
+			{ fibSize = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-q"))
+			{ arpQueueLen = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-Q"))
+			{ arpQueueBytes = Long.parseLong(args[++i]) * 1024; }
+			else if (arg.equals("-d"))
+			{
+				String policy = args[++i];
+				if (!policy.equals("oldest") && !policy.equals("newest"))
+				{
+					usage();
+					return;
+				}
+				arpDropOldest = policy.equals("oldest");
+			}
+			else if (arg.equals("-L"))
+			{
+				logLevel = Log.parseLevel(args[++i]);
+				if (logLevel < 0)
+				{
+					usage();
+					return;
+				}
+			}
+			else if (arg.equals("-P"))
+			{ logSample = Long.parseLong(args[++i]); }
 			else if (arg.equals("-r"))
 			{ routeTableFile = args[++i]; }
 			else if (arg.equals("-a"))
@@ -50,11 +110,15 @@ public class Main
 			return;
 		}
 		
+		Log.setLevel(logLevel);
+		Log.setSampleRate(logSample);
+		
 		// Open PCAP dump file for logging packets sent/received by the router
 		DumpFile dump = null;
 		if (logfile != null)
 		{
-			dump = DumpFile.open(logfile);
+			dump = DumpFile.open(logfile, DumpFile.DEFAULT_QUEUE_LEN, logDrop,
+					logNanos, logRotateBytes, logRotateSeconds, logRingBytes);
 			if (null == dump)
 			{
 				System.err.println("Error opening up dump file "+logfile);
@@ -79,12 +143,17 @@ public class Main
 		System.out.println(String.format("Connecting to server %s:%d", 
 				server, port));
 		vnsComm = new VNSComm(dev);
+		vnsComm.setBatching(maxBatch, maxDelay);
 		if (!vnsComm.connectToServer(port, server))
 		{ System.exit(1); }
 		vnsComm.readFromServerExpect(Command.VNS_HW_INFO);	
 		
 		if (dev instanceof Router) 
 		{
+			((Router)dev).setFibCacheSize(fibSize);
+			((Router)dev).getArpResolver().setLimits(arpQueueLen, arpQueueBytes,
+					arpDropOldest);
+			
 			// Read static route table
 			if (routeTableFile != null)
 			{ ((Router)dev).loadRouteTable(routeTableFile); }
@@ -97,11 +166,25 @@ public class Main
 			{ ((Router)dev).runRIP(); }
 		}
 
+		// Hand packets to worker threads, if asked to and the device can cope
+		if (workers > 1)
+		{
+			if (dev.isConcurrent())
+			{
+				pipeline = new Pipeline(dev, vnsComm, workers);
+				vnsComm.setPipeline(pipeline);
+			}
+			else
+			{ System.err.println("Device does not support -t, using one thread"); }
+		}
+		
 		// Read messages from the server until the server closes the connection
 		System.out.println("<-- Ready to process packets -->");
 		while (vnsComm.readFromServer());
 		
 		// Shutdown the router
+		if (pipeline != null)
+		{ pipeline.shutdown(); }
 		dev.destroy();
 	}
 	
@@ -109,7 +192,22 @@ public class Main
 	{
 		System.out.println("Virtual Network Client");
 		System.out.println("VNet -v host [-s server] [-p port] [-h]");
-		System.out.println("     [-r routing_table] [-a arp_cache] [-l log_file]");
+		System.out.println("     [-r routing_table] [-a arp_cache] [-F entries] [-b packets] [-w usecs]");
+		System.out.println("     [-q packets] [-Q KB] [-d oldest|newest]");
+		System.out.println("     [-t threads] [-L error|warn|info|debug|trace [-P n]]");
+		System.out.println("     [-l log_file [-D] [-N] [-C MB] [-G secs] [-W MB]]");
+		System.out.println("  -F caches forwarding decisions for entries destinations; 0 disables");
+		System.out.println("  -q, -Q hold at most packets per unresolved next hop and KB in all;");
+		System.out.println("     -d drops the oldest held packet (default) or the newest when full");
+		System.out.println("  -b, -w write packets to the server in batches of at most packets,");
+		System.out.println("         holding none for longer than usecs microseconds");
+		System.out.println("  -t handles packets on threads worker threads, keeping each flow in order");
+		System.out.println("  -L prints messages up to the level; debug and trace print every packet,");
+		System.out.println("     or with -P one packet in every n");
+		System.out.println("  -D drops logged packets instead of waiting when the log falls behind");
+		System.out.println("  -N logs nanosecond timestamps");
+		System.out.println("  -C, -G start a new log_file.N every MB megabytes or secs seconds");
+		System.out.println("  -W deletes the oldest log files to keep the log under MB megabytes");
 		System.out.println(String.format("  defaults server=%s port=%d", 
 				DEFAULT_SERVER, DEFAULT_PORT));
 	}
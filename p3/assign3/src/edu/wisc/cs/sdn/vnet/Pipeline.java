@@ -0,0 +1,118 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import edu.wisc.cs.sdn.vnet.vns.VNSComm;
+
+/**
+ * Spreads received frames over a set of worker threads. The thread reading
+ * from the VNS server dispatches each frame by its flow hash, so frames of the
+ * same flow are always handled by the same worker, in the order they arrived.
+ * Workers only queue the packets they send; the VNS flusher thread writes
+ * them out whenever a batch fills or a worker runs out of frames to handle,
+ * and a worker never writes to the server itself.
+ */
+public class Pipeline
+{
+	/** Frames that may wait for each worker before the reader blocks */
+	public static final int QUEUE_LEN = 1024;
+
+	private Device device;
+	private VNSComm vnsComm;
+	private Worker[] workers;
+
+	/**
+	 * Creates and starts a pipeline.
+	 * @param device device whose handleFrame the workers call; it must be
+	 *        safe for concurrent use
+	 * @param vnsComm connection to the VNS server the device sends through
+	 * @param numWorkers number of worker threads
+	 */
+	public Pipeline(Device device, VNSComm vnsComm, int numWorkers)
+	{
+		this.device = device;
+		this.vnsComm = vnsComm;
+		this.workers = new Worker[numWorkers];
+		for (int i = 0; i < numWorkers; i++)
+		{
+			this.workers[i] = new Worker(i);
+			this.workers[i].start();
+		}
+	}
+
+	/**
+	 * Hand a frame to the worker for its flow, waiting if that worker is too
+	 * far behind.
+	 * @param frame the frame; the pipeline takes ownership of it
+	 */
+	public void dispatch(Frame frame)
+	{
+		int hash = frame.flowHash();
+		Worker worker = this.workers[(hash & 0x7fffffff) % this.workers.length];
+		try
+		{ worker.queue.put(frame); }
+		catch (InterruptedException e)
+		{
+			frame.release();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Let the workers finish the frames already dispatched, then stop them.
+	 */
+	public void shutdown()
+	{
+		for (Worker worker : this.workers)
+		{ worker.stopping = true; }
+		for (Worker worker : this.workers)
+		{
+			try
+			{ worker.join(); }
+			catch (InterruptedException e) { }
+		}
+		this.vnsComm.flush();
+	}
+
+	private class Worker extends Thread
+	{
+		BlockingQueue<Frame> queue;
+		volatile boolean stopping;
+
+		Worker(int id)
+		{
+			super("worker-" + id);
+			this.queue = new ArrayBlockingQueue<Frame>(QUEUE_LEN);
+			this.stopping = false;
+			this.setDaemon(true);
+		}
+
+		public void run()
+		{
+			while (true)
+			{
+				Frame frame = this.queue.poll();
+				if (null == frame)
+				{
+					// Out of work: get what was sent written, then wait
+					vnsComm.flushSoon();
+					if (this.stopping)
+					{ return; }
+					try
+					{ frame = this.queue.poll(100, TimeUnit.MILLISECONDS); }
+					catch (InterruptedException e)
+					{ return; }
+					if (null == frame)
+					{ continue; }
+				}
+
+				try
+				{ device.handleFrame(frame); }
+				catch (RuntimeException e)
+				{ e.printStackTrace(); }
+			}
+		}
+	}
+}
@@ -4,8 +4,9 @@ import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -14,27 +15,82 @@ import net.floodlightcontroller.packet.MACAddress;
 
 /**
  * A cache of MAC address to IP address mappings.
+ *
+ * Lookups read an immutable map through a volatile reference and never
+ * lock; adding or removing an entry publishes a new map. Learned entries
+ * age as described in ArpEntry: age() is called about once a second, and
+ * returns the entries to send a probe for. Entries in use are probed before
+ * they go stale, so busy next hops are refreshed in the background without
+ * forwarding ever waiting on a reply.
  * @author Aaron Gember-Jacobson
  */
 public class ArpCache
-{		
-	/** Entries in the cache; maps an IP address to an entry */
-	private Map<Integer,ArpEntry> entries;
+{
+	/** Time (in milliseconds) a confirmed mapping stays REACHABLE */
+	public static final long REACHABLE_TIME = 30000;
+
+	/** Time (in milliseconds) after which a used mapping is refreshed */
+	public static final long REFRESH_TIME = REACHABLE_TIME * 3 / 4;
+
+	/** Time (in milliseconds) an unused STALE mapping is kept for */
+	public static final long STALE_TIME = 60000;
+
+	/** Time (in milliseconds) a failed resolution is remembered for */
+	public static final long FAILED_TIME = 5000;
+
+	/** Number of probes sent before a mapping is given up on */
+	public static final int MAX_PROBES = 3;
+
+	/** Entries in the cache; replaced, never modified, once published */
+	private volatile IntMap<ArpEntry> entries;
+	
+	/** Count of changes to mappings, so caches can tell they are stale */
+	private AtomicInteger generation;
 	
 	/**
 	 * Initializes an empty ARP cache for a router.
 	 */
 	public ArpCache()
-	{ this.entries = new ConcurrentHashMap<Integer,ArpEntry>(); }
+	{
+		this.entries = new IntMap<ArpEntry>();
+		this.generation = new AtomicInteger();
+	}
 	
 	/**
 	 * Insert an entry in the ARP cache for a specific IP address, MAC address
-	 * pair.
+	 * pair, or confirm the entry if the pair is already there.
 	 * @param mac MAC address corresponding to IP address
 	 * @param ip IP address corresponding to MAC address
 	 */
 	public void insert(MACAddress mac, int ip)
-	{ this.entries.put(ip, new ArpEntry(mac, ip)); }
+	{ this.insert(mac, ip, ArpEntry.REACHABLE); }
+	
+	private synchronized void insert(MACAddress mac, int ip, int state)
+	{
+		ArpEntry old = this.entries.get(ip);
+		
+		// Confirming a mapping does not change it
+		if (old != null && old.getState() != ArpEntry.PERMANENT 
+				&& mac.equals(old.getMac()))
+		{
+			old.confirm(System.currentTimeMillis());
+			return;
+		}
+		if (old != null && ArpEntry.PERMANENT == old.getState()
+				&& state != ArpEntry.PERMANENT)
+		{ return; }
+		
+		IntMap<ArpEntry> updated = this.entries.copy();
+		updated.put(ip, new ArpEntry(mac, ip, state));
+		this.entries = updated;
+		this.generation.incrementAndGet();
+	}
+	
+	/**
+	 * @return a number that changes whenever a mapping is added or changed
+	 */
+	public int getGeneration()
+	{ return this.generation.get(); }
 	
 	/**
 	 * Checks if an IP->MAC mapping is the in the cache.
@@ -42,7 +98,109 @@ public class ArpCache
 	 * @return the IP->MAC mapping from the cache; null if none exists 
 	 */
 	public ArpEntry lookup(int ip)
-	{ return this.entries.get(ip); }
+	{
+		ArpEntry entry = this.entries.get(ip);
+		if (null == entry || null == entry.getMac())
+		{ return null; }
+		entry.markUsed();
+		return entry;
+	}
+	
+	/**
+	 * Remember that resolving an IP address failed, unless a mapping for it
+	 * has been learned meanwhile.
+	 * @param ip IP address that did not answer
+	 */
+	public synchronized void fail(int ip)
+	{
+		ArpEntry old = this.entries.get(ip);
+		if (old != null && old.getMac() != null)
+		{ return; }
+		IntMap<ArpEntry> updated = this.entries.copy();
+		updated.put(ip, new ArpEntry(null, ip, ArpEntry.FAILED));
+		this.entries = updated;
+	}
+	
+	/**
+	 * @param ip an IP address
+	 * @return true if resolving the address failed within FAILED_TIME
+	 */
+	public boolean isFailed(int ip)
+	{
+		ArpEntry entry = this.entries.get(ip);
+		return (entry != null && ArpEntry.FAILED == entry.getState()
+				&& System.currentTimeMillis() - entry.getTimeConfirmed() 
+						< FAILED_TIME);
+	}
+	
+	/**
+	 * Move learned entries through their states, and drop entries that are
+	 * unused, unconfirmed or failed too long ago.
+	 * @param now current time, in milliseconds since the epoch
+	 * @return entries to send a probe for now
+	 */
+	public synchronized List<ArpEntry> age(long now)
+	{
+		List<ArpEntry> probes = new ArrayList<ArpEntry>();
+		List<ArpEntry> removed = new ArrayList<ArpEntry>();
+		List<ArpEntry> failed = new ArrayList<ArpEntry>();
+		for (ArpEntry entry : this.entries.values())
+		{
+			long age = now - entry.getTimeConfirmed();
+			switch (entry.getState())
+			{
+			case ArpEntry.REACHABLE:
+				if (entry.isUsed() && age >= REFRESH_TIME)
+				{ entry.setState(ArpEntry.PROBE); }
+				else if (age >= REACHABLE_TIME)
+				{ entry.setState(ArpEntry.STALE); }
+				break;
+			case ArpEntry.STALE:
+				if (entry.isUsed())
+				{ entry.setState(ArpEntry.PROBE); }
+				else if (age >= STALE_TIME)
+				{ removed.add(entry); }
+				break;
+			case ArpEntry.FAILED:
+				if (age >= FAILED_TIME)
+				{ removed.add(entry); }
+				break;
+			}
+			
+			if (ArpEntry.PROBE == entry.getState())
+			{
+				if (entry.probes < MAX_PROBES)
+				{
+					entry.probes++;
+					probes.add(entry);
+				}
+				else
+				{ failed.add(entry); }
+			}
+		}
+		
+		if (!removed.isEmpty() || !failed.isEmpty())
+		{
+			IntMap<ArpEntry> updated = this.entries.copy();
+			boolean unmapped = false;
+			for (ArpEntry entry : removed)
+			{
+				updated.remove(entry.getIp());
+				unmapped |= (entry.getMac() != null);
+			}
+			// Probes went unanswered, so remember the failure
+			for (ArpEntry entry : failed)
+			{
+				updated.put(entry.getIp(), 
+						new ArpEntry(null, entry.getIp(), ArpEntry.FAILED));
+				unmapped = true;
+			}
+			this.entries = updated;
+			if (unmapped)
+			{ this.generation.incrementAndGet(); }
+		}
+		return probes;
+	}
 	
 	/**
 	 * Populate the ARP cache from a file.
@@ -118,7 +276,7 @@ public class ArpCache
 			}
 			
 			// Add an entry to the ACP cache
-			this.insert(mac, ip);
+			this.insert(mac, ip, ArpEntry.PERMANENT);
 		}
 	
 		// Close the file
@@ -128,7 +286,7 @@ public class ArpCache
 	
 	public String toString()
 	{
-        String result = "IP\t\tMAC\n";
+        String result = "IP\t\tMAC\t\t\tState\n";
         for (ArpEntry entry : this.entries.values())
         { result += entry.toString()+"\n"; }
 	    return result;
@@ -5,52 +5,144 @@ import net.floodlightcontroller.packet.MACAddress;
 
 /**
  * An entry in ARP table that maps an IP address to a MAC address.
+ *
+ * Learned entries move between states as in neighbor unreachability
+ * detection: REACHABLE while recently confirmed, STALE once not, and PROBE
+ * while being confirmed again. A FAILED entry has no MAC address; it
+ * records that resolution failed, so it is not retried at once.
  * @author Aaron Gember-Jacobson
  */
-public class ArpEntry 
+public class ArpEntry
 {
+	/** Loaded from a file; never ages */
+	public static final int PERMANENT = 0;
+
+	/** Confirmed recently */
+	public static final int REACHABLE = 1;
+
+	/** Not confirmed recently, but still used to send packets */
+	public static final int STALE = 2;
+
+	/** Being confirmed, and still used to send packets meanwhile */
+	public static final int PROBE = 3;
+
+	/** Resolution failed; there is no MAC address */
+	public static final int FAILED = 4;
+
+	private static final String[] STATE_NAMES =
+			{ "permanent", "reachable", "stale", "probe", "failed" };
+
 	/** MAC address corresponding to IP address */
 	private MACAddress mac;
-	
+
 	/** IP address corresponding to MAC address */
 	private int ip;
-	
+
 	/** Time (in milliseconds since the epoch) the mapping was created */
 	private long timeAdded;
-	
+
+	/** One of the states above; changed only by the ARP cache */
+	private volatile int state;
+
+	/** Time (in milliseconds since the epoch) the mapping was confirmed */
+	private volatile long timeConfirmed;
+
+	/** Whether a packet was sent using the mapping since it was confirmed */
+	private volatile boolean used;
+
+	/** Number of probes sent in the PROBE state; guarded by the cache */
+	int probes;
+
 	/**
 	 * Create an ARP table entry that maps an IP address to a MAC address.
 	 * @param mac MAC address corresponding to IP address
 	 * @param ip IP address corresponding to MAC address
 	 */
 	public ArpEntry(MACAddress mac, int ip)
+	{ this(mac, ip, REACHABLE); }
+
+	/**
+	 * @param mac MAC address corresponding to IP address; null if FAILED
+	 * @param ip IP address corresponding to MAC address
+	 * @param state initial state of the entry
+	 */
+	public ArpEntry(MACAddress mac, int ip, int state)
 	{
 		this.mac = mac;
 		this.ip = ip;
 		this.timeAdded = System.currentTimeMillis();
+		this.state = state;
+		this.timeConfirmed = this.timeAdded;
+		this.used = false;
+		this.probes = 0;
 	}
-	
+
 	/**
-	 * @return MAC address corresponding to IP address
+	 * @return MAC address corresponding to IP address; null if FAILED
 	 */
 	public MACAddress getMac()
 	{ return this.mac; }
-	
+
 	/**
 	 * @return IP address corresponding to MAC address
 	 */
 	public int getIp()
 	{ return this.ip; }
-	
+
 	/**
 	 * @return time (in milliseconds since the epoch) the mapping was created
 	 */
 	public long getTimeAdded()
 	{ return this.timeAdded; }
-	
+
+	/**
+	 * @return the entry's state, such as REACHABLE
+	 */
+	public int getState()
+	{ return this.state; }
+
+	void setState(int state)
+	{ this.state = state; }
+
+	/**
+	 * @return time (in milliseconds since the epoch) the mapping was last
+	 *         confirmed
+	 */
+	public long getTimeConfirmed()
+	{ return this.timeConfirmed; }
+
+	/**
+	 * Record that the mapping was just confirmed by a reply.
+	 */
+	void confirm(long now)
+	{
+		this.timeConfirmed = now;
+		this.used = false;
+		this.probes = 0;
+		this.state = REACHABLE;
+	}
+
+	/**
+	 * Record that a packet is being sent using the mapping. Writes only the
+	 * first time, so busy entries are not written on every packet.
+	 */
+	public void markUsed()
+	{
+		if (!this.used)
+		{ this.used = true; }
+	}
+
+	/**
+	 * @return true if a packet was sent using the mapping since it was last
+	 *         confirmed
+	 */
+	public boolean isUsed()
+	{ return this.used; }
+
 	public String toString()
 	{
-		return String.format("%s \t%s", IPv4.fromIPv4Address(this.ip),
-				this.mac.toString());
+		return String.format("%s \t%s \t%s", IPv4.fromIPv4Address(this.ip),
+				(null == this.mac) ? "-" : this.mac.toString(),
+				STATE_NAMES[this.state]);
 	}
 }
@@ -0,0 +1,394 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.MACAddress;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * Resolves next hops for packets whose next hop's MAC address is not in the
+ * ARP cache. Packets wait in a queue per next hop while an ARP request is
+ * sent every second, up to three times; a reply sends the queue at once,
+ * and if none comes a second after the last request the packets are
+ * answered with ICMP host unreachable. Each next hop's retries run on a
+ * timer, so nothing polls and an idle router uses no CPU. A next hop that
+ * failed recently is answered with host unreachable straight away.
+ *
+ * The same timer ages the ARP cache once a second and sends the probes
+ * that refresh its entries.
+ *
+ * Queues are bounded, both per next hop and in total bytes, so traffic to
+ * a dead subnet cannot exhaust the heap. A packet arriving at a full queue
+ * either replaces the oldest packet in it or is dropped itself.
+ */
+public class ArpResolver
+{
+	/** Number of ARP requests to send before giving up */
+	public static final int MAX_REQUESTS = 3;
+
+	/** Time between ARP requests, in milliseconds */
+	public static final long REQUEST_INTERVAL = 1000;
+
+	/** Default number of packets that may wait on one next hop */
+	public static final int DEFAULT_QUEUE_LEN = 64;
+
+	/** Default number of bytes that may wait on all next hops together */
+	public static final long DEFAULT_QUEUE_BYTES = 4 * 1024 * 1024;
+
+	/**
+	 * A next hop being resolved, and a ring of the packets waiting on it
+	 * along with the interfaces they arrived on.
+	 */
+	private class Pending implements Runnable
+	{
+		private final int nextHop;
+		private final Iface outIface;
+		private Ethernet[] packets;
+		private Iface[] inIfaces;
+		private int[] sizes;
+		private int head;
+		private int count;
+		private int requests;
+		private ScheduledFuture<?> timer;
+
+		private Pending(int nextHop, Iface outIface)
+		{
+			this.nextHop = nextHop;
+			this.outIface = outIface;
+			this.packets = new Ethernet[4];
+			this.inIfaces = new Iface[4];
+			this.sizes = new int[4];
+			this.head = 0;
+			this.count = 0;
+			this.requests = 0;
+		}
+
+		/** Add a packet at the tail, growing the ring up to queueLen */
+		private void add(Ethernet packet, Iface inIface, int size)
+		{
+			if (this.count == this.packets.length)
+			{
+				int length = Math.min(2 * this.count, queueLen);
+				this.packets = this.unroll(this.packets, length);
+				this.inIfaces = this.unroll(this.inIfaces, length);
+				int[] sizes = new int[length];
+				for (int i = 0; i < this.count; i++)
+				{ sizes[i] = this.sizes[(this.head + i) % this.sizes.length]; }
+				this.sizes = sizes;
+				this.head = 0;
+			}
+			int tail = (this.head + this.count) % this.packets.length;
+			this.packets[tail] = packet;
+			this.inIfaces[tail] = inIface;
+			this.sizes[tail] = size;
+			this.count++;
+		}
+
+		private <T> T[] unroll(T[] ring, int length)
+		{
+			T[] copy = Arrays.copyOf(ring, length);
+			for (int i = 0; i < this.count; i++)
+			{ copy[i] = ring[(this.head + i) % ring.length]; }
+			return copy;
+		}
+
+		/** Remove the packet at the head; its size is returned */
+		private int removeOldest()
+		{
+			int size = this.sizes[this.head];
+			this.packets[this.head] = null;
+			this.inIfaces[this.head] = null;
+			this.head = (this.head + 1) % this.packets.length;
+			this.count--;
+			return size;
+		}
+
+		private Ethernet get(int i)
+		{ return this.packets[(this.head + i) % this.packets.length]; }
+
+		private Iface getInIface(int i)
+		{ return this.inIfaces[(this.head + i) % this.inIfaces.length]; }
+
+		/** Called by the timer REQUEST_INTERVAL after each request */
+		public void run()
+		{ timeout(this); }
+	}
+
+	private final Router router;
+	private final ArpCache arpCache;
+
+	/** Next hops being resolved; guarded by this */
+	private final IntMap<Pending> pending;
+
+	/** Limits on waiting packets, and what to drop when one is reached */
+	private volatile int queueLen;
+	private volatile long queueBytes;
+	private volatile boolean dropOldest;
+
+	/** Bytes of packets waiting on all next hops; guarded by this */
+	private long queuedBytes;
+
+	/** Packets dropped because a queue or the byte limit was full */
+	private final LongAdder dropped;
+
+	/** Packets answered with host unreachable because no reply came */
+	private final LongAdder unresolved;
+
+	private final ScheduledThreadPoolExecutor timer;
+
+	public ArpResolver(Router router, ArpCache arpCache)
+	{
+		this.router = router;
+		this.arpCache = arpCache;
+		this.pending = new IntMap<Pending>();
+		this.queueLen = DEFAULT_QUEUE_LEN;
+		this.queueBytes = DEFAULT_QUEUE_BYTES;
+		this.dropOldest = true;
+		this.queuedBytes = 0;
+		this.dropped = new LongAdder();
+		this.unresolved = new LongAdder();
+		this.timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+		{
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "arp");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.timer.setRemoveOnCancelPolicy(true);
+		this.timer.scheduleWithFixedDelay(new Runnable()
+		{
+			public void run()
+			{ age(); }
+		}, REQUEST_INTERVAL, REQUEST_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @param queueLen packets that may wait on one next hop
+	 * @param queueBytes bytes that may wait on all next hops together
+	 * @param dropOldest true to make room for a new packet by dropping the
+	 *        oldest packet waiting on its next hop; false to drop the new 
+	 *        packet
+	 */
+	public void setLimits(int queueLen, long queueBytes, boolean dropOldest)
+	{
+		this.queueLen = Math.max(1, queueLen);
+		this.queueBytes = queueBytes;
+		this.dropOldest = dropOldest;
+	}
+
+	/**
+	 * @return number of packets dropped because a queue was full
+	 */
+	public long getDropped()
+	{ return this.dropped.sum(); }
+
+	/**
+	 * @return number of packets whose next hop never answered
+	 */
+	public long getUnresolved()
+	{ return this.unresolved.sum(); }
+
+	/** 
+	 * @return a packet's size on the wire, for the byte limit
+	 */
+	private static int size(Ethernet packet)
+	{
+		if (packet.getPayload() instanceof IPv4)
+		{
+			IPv4 ipPacket = (IPv4)packet.getPayload();
+			return 14 + (ipPacket.getTotalLength() & 0xffff);
+		}
+		return 14 + 1500;
+	}
+
+	/**
+	 * Hold a packet until its next hop's MAC address is known, starting to
+	 * resolve the next hop if this is the first packet waiting on it.
+	 * @param packet packet to send, with its source MAC address already set
+	 * @param nextHop IP address of the next hop
+	 * @param outIface interface out which to send the packet
+	 * @param inIface interface the packet arrived on, for ICMP errors
+	 */
+	public void enqueue(Ethernet packet, int nextHop, Iface outIface,
+			Iface inIface)
+	{
+		// Do not ask again so soon after a next hop failed to answer
+		if (this.arpCache.isFailed(nextHop))
+		{
+			this.unresolved.increment();
+			this.router.icmp_code(packet, (byte)3, (byte)1, inIface);
+			return;
+		}
+
+		ArpEntry arpEntry;
+		Pending started = null;
+		synchronized(this)
+		{
+			// A reply may have been handled on another thread meanwhile
+			arpEntry = this.arpCache.lookup(nextHop);
+			if (null == arpEntry)
+			{
+				Pending entry = this.pending.get(nextHop);
+				int size = size(packet);
+				boolean full = (this.queuedBytes + size > this.queueBytes);
+				if (null == entry)
+				{
+					// No room to start resolving another next hop
+					if (full)
+					{
+						this.dropped.increment();
+						return;
+					}
+					entry = new Pending(nextHop, outIface);
+					this.pending.put(nextHop, entry);
+					this.request(entry);
+					started = entry;
+				}
+				else if (full || entry.count >= this.queueLen)
+				{
+					if (!this.dropOldest)
+					{
+						this.dropped.increment();
+						return;
+					}
+					// Evict from this next hop only, until the packet fits
+					while (entry.count > 0 && (entry.count >= this.queueLen
+							|| this.queuedBytes + size > this.queueBytes))
+					{
+						this.queuedBytes -= entry.removeOldest();
+						this.dropped.increment();
+					}
+					if (this.queuedBytes + size > this.queueBytes)
+					{
+						this.dropped.increment();
+						return;
+					}
+				}
+				entry.add(packet, inIface, size);
+				this.queuedBytes += size;
+			}
+		}
+		if (null == arpEntry)
+		{
+			// Ask outside the lock, as sending may wait for the server
+			if (started != null)
+			{ this.router.send_arp(nextHop, outIface); }
+			return;
+		}
+
+		packet.setDestinationMACAddress(arpEntry.getMac().toBytes());
+		this.router.sendPacket(packet, outIface);
+	}
+
+	/**
+	 * Send the packets waiting on a next hop whose MAC address has just been
+	 * learned. The caller adds the mapping to the ARP cache first.
+	 * @param ip IP address that was resolved
+	 * @param mac MAC address for the IP address
+	 */
+	public void resolved(int ip, MACAddress mac)
+	{
+		Pending entry;
+		synchronized(this)
+		{
+			entry = this.pending.remove(ip);
+			if (null == entry)
+			{ return; }
+			entry.timer.cancel(false);
+			this.release(entry);
+		}
+
+		byte[] macBytes = mac.toBytes();
+		for (int i = 0; i < entry.count; i++)
+		{
+			Ethernet packet = entry.get(i);
+			packet.setDestinationMACAddress(macBytes);
+			this.router.sendPacket(packet, entry.outIface);
+		}
+	}
+
+	/**
+	 * Stop resolving; packets still waiting are dropped.
+	 */
+	public void shutdown()
+	{ this.timer.shutdownNow(); }
+
+	/** Stop counting a next hop's packets; called with this locked */
+	private void release(Pending entry)
+	{
+		for (int i = 0; i < entry.count; i++)
+		{ this.queuedBytes -= entry.sizes[(entry.head + i) % entry.sizes.length]; }
+	}
+
+	/** 
+	 * Count a request and time it out; called with this locked. The caller
+	 * sends the request once it has let go of the lock.
+	 */
+	private void request(Pending entry)
+	{
+		entry.requests++;
+		entry.timer = this.timer.schedule(entry, REQUEST_INTERVAL,
+				TimeUnit.MILLISECONDS);
+	}
+
+	private void timeout(Pending entry)
+	{
+		boolean retry;
+		synchronized(this)
+		{
+			// Resolved, or replaced by a new attempt, since the timer was set
+			if (this.pending.get(entry.nextHop) != entry)
+			{ return; }
+			retry = (entry.requests < MAX_REQUESTS);
+			if (retry)
+			{ this.request(entry); }
+			else
+			{
+				this.pending.remove(entry.nextHop);
+				this.release(entry);
+			}
+		}
+		if (retry)
+		{
+			this.router.send_arp(entry.nextHop, entry.outIface);
+			return;
+		}
+		this.arpCache.fail(entry.nextHop);
+
+		this.unresolved.add(entry.count);
+		for (int i = 0; i < entry.count; i++)
+		{
+			this.router.icmp_code(entry.get(i), (byte)3, (byte)1,
+					entry.getInIface(i));
+		}
+	}
+
+	/** Age the ARP cache and probe the entries it asks to refresh */
+	private void age()
+	{
+		List<ArpEntry> probes = this.arpCache.age(System.currentTimeMillis());
+		for (ArpEntry entry : probes)
+		{
+			RouteEntry route = this.router.getRouteTable().lookup(entry.getIp());
+			if (route != null)
+			{ this.router.send_arp(entry.getIp(), route.getInterface()); }
+		}
+	}
+
+	public String toString()
+	{
+		return String.format("ARP queues: %d packets dropped, %d unresolved",
+				this.getDropped(), this.getUnresolved());
+	}
+}
@@ -0,0 +1,159 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * A cache of forwarding decisions by destination IP address: the route, the
+ * next hop and the next hop's MAC address, so a packet to a recently seen
+ * destination costs one lookup here instead of a route lookup and an ARP
+ * lookup.
+ *
+ * The cache is direct mapped and bounded. Each slot holds an immutable
+ * entry, tagged with the route table and ARP cache generations it was
+ * built from; any change to either makes every entry stale at once, with no
+ * work on the update path. Safe for concurrent use without locking: slots
+ * are replaced, never modified, and a lost race only costs a miss.
+ */
+public class FibCache
+{
+	public static final int DEFAULT_SIZE = 4096;
+
+	/** A cached forwarding decision */
+	public static final class Entry
+	{
+		private final int dstIp;
+		private final int routeGeneration;
+		private final int arpGeneration;
+		private final RouteEntry route;
+		private final int nextHop;
+		private final ArpEntry arpEntry;
+		private final long nextHopMac;
+
+		private Entry(int dstIp, int routeGeneration, int arpGeneration,
+				RouteEntry route, int nextHop, ArpEntry arpEntry)
+		{
+			this.dstIp = dstIp;
+			this.routeGeneration = routeGeneration;
+			this.arpGeneration = arpGeneration;
+			this.route = route;
+			this.nextHop = nextHop;
+			this.arpEntry = arpEntry;
+			this.nextHopMac = arpEntry.getMac().toLong();
+		}
+
+		/**
+		 * @return the route for the destination
+		 */
+		public RouteEntry getRoute()
+		{ return this.route; }
+
+		/**
+		 * @return the interface out which to send packets
+		 */
+		public Iface getInterface()
+		{ return this.route.getInterface(); }
+
+		/**
+		 * @return IP address of the next hop
+		 */
+		public int getNextHop()
+		{ return this.nextHop; }
+
+		/**
+		 * @return MAC address of the next hop, in the low 48 bits
+		 */
+		public long getNextHopMac()
+		{ return this.nextHopMac; }
+	}
+
+	private final RouteTable routeTable;
+	private final ArpCache arpCache;
+	private final Entry[] slots;
+	private final int shift;
+
+	private final LongAdder hits;
+	private final LongAdder misses;
+
+	/**
+	 * @param size number of entries, rounded up to a power of two
+	 */
+	public FibCache(RouteTable routeTable, ArpCache arpCache, int size)
+	{
+		int bits = 32 - Integer.numberOfLeadingZeros(Math.max(2, size) - 1);
+		this.routeTable = routeTable;
+		this.arpCache = arpCache;
+		this.slots = new Entry[1 << bits];
+		this.shift = 32 - bits;
+		this.hits = new LongAdder();
+		this.misses = new LongAdder();
+	}
+
+	/**
+	 * Find the forwarding decision for a destination, from the cache or
+	 * else from the route table and ARP cache.
+	 * @param dstIp destination IP address
+	 * @return the decision; null if there is no route or the next hop's MAC
+	 *         address is not known, which is never cached
+	 */
+	public Entry lookup(int dstIp)
+	{
+		// Read the generations first, so a change during the lookups below
+		// leaves the new entry already stale rather than wrongly current
+		int routeGeneration = this.routeTable.getGeneration();
+		int arpGeneration = this.arpCache.getGeneration();
+
+		int index = (dstIp * 0x9e3779b9) >>> this.shift;
+		Entry entry = this.slots[index];
+		if (entry != null && entry.dstIp == dstIp
+				&& entry.routeGeneration == routeGeneration
+				&& entry.arpGeneration == arpGeneration)
+		{
+			// Keep the mapping fresh, as an ARP cache lookup would
+			entry.arpEntry.markUsed();
+			this.hits.increment();
+			return entry;
+		}
+		this.misses.increment();
+
+		RouteEntry route = this.routeTable.lookup(dstIp);
+		if (null == route)
+		{ return null; }
+		int nextHop = route.getGatewayAddress();
+		if (0 == nextHop)
+		{ nextHop = dstIp; }
+		ArpEntry arpEntry = this.arpCache.lookup(nextHop);
+		if (null == arpEntry)
+		{ return null; }
+
+		entry = new Entry(dstIp, routeGeneration, arpGeneration, route,
+				nextHop, arpEntry);
+		this.slots[index] = entry;
+		return entry;
+	}
+
+	/**
+	 * @return number of entries the cache holds
+	 */
+	public int getSize()
+	{ return this.slots.length; }
+
+	/**
+	 * @return number of lookups answered from the cache
+	 */
+	public long getHits()
+	{ return this.hits.sum(); }
+
+	/**
+	 * @return number of lookups that went to the route table
+	 */
+	public long getMisses()
+	{ return this.misses.sum(); }
+
+	public String toString()
+	{
+		return String.format("FIB cache: %d entries, %d hits, %d misses",
+				this.getSize(), this.getHits(), this.getMisses());
+	}
+}
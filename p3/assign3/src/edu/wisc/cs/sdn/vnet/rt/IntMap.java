@@ -0,0 +1,162 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A map from IP addresses to values, open addressed over primitive arrays so
+ * lookups box nothing. Address 0 is never a key; it marks a free slot.
+ *
+ * Not thread safe; callers synchronize. A map that is no longer modified
+ * may be read from any thread once safely published.
+ */
+class IntMap<V>
+{
+	private int[] keys;
+	private Object[] values;
+	private int mask;
+	private int size;
+
+	IntMap()
+	{
+		this.keys = new int[16];
+		this.values = new Object[16];
+		this.mask = 15;
+		this.size = 0;
+	}
+
+	private int slot(int key)
+	{
+		int hash = key * 0x9e3779b9;
+		return (hash ^ (hash >>> 16)) & this.mask;
+	}
+
+	/**
+	 * @return the value for the key; null if there is none
+	 */
+	@SuppressWarnings("unchecked")
+	V get(int key)
+	{
+		int slot = this.slot(key);
+		while (this.keys[slot] != 0)
+		{
+			if (this.keys[slot] == key)
+			{ return (V)this.values[slot]; }
+			slot = (slot + 1) & this.mask;
+		}
+		return null;
+	}
+
+	/**
+	 * @param key a non-zero key
+	 * @return the value the key had before; null if there was none
+	 */
+	@SuppressWarnings("unchecked")
+	V put(int key, V value)
+	{
+		int slot = this.slot(key);
+		while (this.keys[slot] != 0)
+		{
+			if (this.keys[slot] == key)
+			{
+				V old = (V)this.values[slot];
+				this.values[slot] = value;
+				return old;
+			}
+			slot = (slot + 1) & this.mask;
+		}
+		this.keys[slot] = key;
+		this.values[slot] = value;
+		this.size++;
+
+		// Keep the table at most half full so probes stay short
+		if (2 * this.size > this.keys.length)
+		{ this.resize(); }
+		return null;
+	}
+
+	/**
+	 * @return the value the key had; null if there was none
+	 */
+	@SuppressWarnings("unchecked")
+	V remove(int key)
+	{
+		int slot = this.slot(key);
+		while (this.keys[slot] != key)
+		{
+			if (0 == this.keys[slot])
+			{ return null; }
+			slot = (slot + 1) & this.mask;
+		}
+		V old = (V)this.values[slot];
+		this.size--;
+
+		// Shift back later keys of the probe run, so no gap breaks it
+		int gap = slot;
+		int next = (gap + 1) & this.mask;
+		while (this.keys[next] != 0)
+		{
+			int home = this.slot(this.keys[next]);
+			if (((next - home) & this.mask) >= ((next - gap) & this.mask))
+			{
+				this.keys[gap] = this.keys[next];
+				this.values[gap] = this.values[next];
+				gap = next;
+			}
+			next = (next + 1) & this.mask;
+		}
+		this.keys[gap] = 0;
+		this.values[gap] = null;
+		return old;
+	}
+
+	int size()
+	{ return this.size; }
+
+	/**
+	 * @return the values, in no particular order
+	 */
+	@SuppressWarnings("unchecked")
+	List<V> values()
+	{
+		List<V> result = new ArrayList<V>(this.size);
+		for (int i = 0; i < this.keys.length; i++)
+		{
+			if (this.keys[i] != 0)
+			{ result.add((V)this.values[i]); }
+		}
+		return result;
+	}
+
+	/**
+	 * @return a map with the same keys and values
+	 */
+	IntMap<V> copy()
+	{
+		IntMap<V> copy = new IntMap<V>();
+		copy.keys = this.keys.clone();
+		copy.values = this.values.clone();
+		copy.mask = this.mask;
+		copy.size = this.size;
+		return copy;
+	}
+
+	private void resize()
+	{
+		int[] oldKeys = this.keys;
+		Object[] oldValues = this.values;
+		this.keys = new int[oldKeys.length * 2];
+		this.values = new Object[oldKeys.length * 2];
+		this.mask = this.keys.length - 1;
+		for (int i = 0; i < oldKeys.length; i++)
+		{
+			if (oldKeys[i] == 0)
+			{ continue; }
+			int slot = this.slot(oldKeys[i]);
+			while (this.keys[slot] != 0)
+			{ slot = (slot + 1) & this.mask; }
+			this.keys[slot] = oldKeys[i];
+			this.values[slot] = oldValues[i];
+		}
+	}
+}
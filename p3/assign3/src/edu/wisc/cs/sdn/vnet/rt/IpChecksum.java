@@ -0,0 +1,78 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+/**
+ * Internet checksum helpers that work on raw header bytes, so the router can
+ * check and patch IPv4 headers without serializing packets.
+ */
+public class IpChecksum
+{
+	/**
+	 * @param buf buffer holding the data
+	 * @param offset position of the data in the buffer
+	 * @param len length of the data, in bytes
+	 * @return ones' complement sum of the data, folded to 16 bits
+	 */
+	public static int sum(byte[] buf, int offset, int len)
+	{
+		int sum = 0;
+		int end = offset + (len & ~1);
+		for (int i = offset; i < end; i += 2)
+		{ sum += ((buf[i] & 0xff) << 8) | (buf[i + 1] & 0xff); }
+		if ((len & 1) != 0)
+		{ sum += (buf[end] & 0xff) << 8; }
+		while ((sum >>> 16) != 0)
+		{ sum = (sum & 0xffff) + (sum >>> 16); }
+		return sum;
+	}
+
+	/**
+	 * Check an IPv4 header's checksum.
+	 * @param buf buffer holding the header
+	 * @param offset position of the header in the buffer
+	 * @param end position just past the last valid byte in the buffer
+	 * @return true if the header is complete and its checksum is correct
+	 */
+	public static boolean verifyHeader(byte[] buf, int offset, int end)
+	{
+		if (offset + 20 > end)
+		{ return false; }
+		int headerLen = (buf[offset] & 0x0f) * 4;
+		if (headerLen < 20 || offset + headerLen > end)
+		{ return false; }
+		return (0xffff == sum(buf, offset, headerLen));
+	}
+
+	/**
+	 * Update a checksum for a change to one 16-bit word of the data it covers,
+	 * per RFC 1624 (eqn. 3): HC' = ~(~HC + ~m + m').
+	 * @param checksum the old checksum
+	 * @param oldWord the word's old value
+	 * @param newWord the word's new value
+	 * @return the new checksum
+	 */
+	public static short update(short checksum, int oldWord, int newWord)
+	{
+		int sum = (~checksum & 0xffff) + (~oldWord & 0xffff)
+				+ (newWord & 0xffff);
+		sum = (sum & 0xffff) + (sum >>> 16);
+		sum = (sum & 0xffff) + (sum >>> 16);
+		return (short)~sum;
+	}
+
+	/**
+	 * Update an IPv4 header checksum for a change of TTL, which shares its
+	 * 16-bit word with the protocol field.
+	 * @param checksum the old checksum
+	 * @param oldTtl the old TTL
+	 * @param newTtl the new TTL
+	 * @param protocol the header's protocol field
+	 * @return the new checksum
+	 */
+	public static short updateTtl(short checksum, byte oldTtl, byte newTtl,
+			byte protocol)
+	{
+		int proto = protocol & 0xff;
+		return update(checksum, ((oldTtl & 0xff) << 8) | proto,
+				((newTtl & 0xff) << 8) | proto);
+	}
+}
@@ -0,0 +1,358 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Longest prefix match index for IPv4, as a multibit trie with strides of
+ * 16, 8 and 8 bits over primitive arrays: a lookup reads at most three
+ * slots. Each slot holds either a route (its number in the routes array, 0
+ * for none) or, if negative, a pointer to a 256-slot chunk for the next
+ * 8 bits. A parallel array records the prefix length of the route in each
+ * slot, so a longer prefix is never overwritten by a shorter one.
+ *
+ * Readers use immutable snapshots of the trie, taken with snapshot(). The
+ * trie and its last snapshot share the slot arrays; the first write to a
+ * shared array after a snapshot copies it, so a snapshot costs nothing
+ * until the trie changes and then only the arrays that changed.
+ *
+ * Not thread safe; callers synchronize. Snapshots are safe to read from
+ * any thread once published.
+ */
+class LpmTrie
+{
+	private static final int ROOT_BITS = 16;
+	private static final int CHUNK_BITS = 8;
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+	/** Node number of the first level; chunks are numbered from 0 */
+	private static final int ROOT = -1;
+
+	/** First level, indexed by the top 16 bits of the address */
+	private int[] root;
+	private byte[] rootDepth;
+
+	/** Second and third level chunks, CHUNK_SIZE slots each */
+	private int[][] chunks;
+	private byte[][] chunkDepth;
+	private int numChunks;
+
+	/** Routes by number; number 0 means no route */
+	private RouteEntry[] routes;
+	private int[] freeRoutes;
+	private int numFree;
+	private int nextRoute;
+
+	/** Route number of each prefix, keyed by prefix length and prefix */
+	private Map<Long,Integer> prefixes;
+
+	/** Last snapshot taken, and whether the trie changed since */
+	private Snapshot snapshot;
+	private boolean dirty;
+
+	/** Snapshot count; a chunk last copied in an earlier one is shared */
+	private int generation;
+	private int[] chunkGeneration;
+	private boolean rootShared;
+	private boolean chunksShared;
+	private boolean routesShared;
+
+	/**
+	 * An immutable view of the trie at some point in time.
+	 */
+	static final class Snapshot
+	{
+		private final int[] root;
+		private final int[][] chunks;
+		private final RouteEntry[] routes;
+
+		private Snapshot(int[] root, int[][] chunks, RouteEntry[] routes)
+		{
+			this.root = root;
+			this.chunks = chunks;
+			this.routes = routes;
+		}
+
+		/**
+		 * @param ip an IP address
+		 * @return the route for the longest prefix matching the address;
+		 *         null if no prefix matches
+		 */
+		RouteEntry lookup(int ip)
+		{
+			int slot = this.root[ip >>> ROOT_BITS];
+			if (slot < 0)
+			{
+				slot = this.chunks[-slot - 1][(ip >>> CHUNK_BITS) & 0xff];
+				if (slot < 0)
+				{ slot = this.chunks[-slot - 1][ip & 0xff]; }
+			}
+			return this.routes[slot];
+		}
+	}
+
+	LpmTrie()
+	{
+		this.root = new int[1 << ROOT_BITS];
+		this.rootDepth = new byte[1 << ROOT_BITS];
+		this.chunks = new int[64][];
+		this.chunkDepth = new byte[64][];
+		this.chunkGeneration = new int[64];
+		this.numChunks = 0;
+		this.routes = new RouteEntry[64];
+		this.freeRoutes = new int[16];
+		this.numFree = 0;
+		this.nextRoute = 1;
+		this.prefixes = new HashMap<Long,Integer>();
+		this.generation = 0;
+		this.dirty = true;
+	}
+
+	/**
+	 * @param len a prefix length, 0 to 32
+	 * @return the mask for the prefix length
+	 */
+	static int mask(int len)
+	{ return (0 == len) ? 0 : (-1 << (32 - len)); }
+
+	private static long key(int prefix, int len)
+	{ return ((long)len << 32) | (prefix & 0xffffffffL); }
+
+	/**
+	 * @return the route for exactly this prefix; null if there is none
+	 */
+	RouteEntry get(int prefix, int len)
+	{
+		Integer route = this.prefixes.get(key(prefix & mask(len), len));
+		return (null == route) ? null : this.routes[route];
+	}
+
+	/**
+	 * Add a route for a prefix, or replace the route for the prefix.
+	 */
+	void put(int prefix, int len, RouteEntry entry)
+	{
+		prefix &= mask(len);
+		long key = key(prefix, len);
+		Integer existing = this.prefixes.get(key);
+		if (existing != null)
+		{
+			this.writableRoutes()[existing] = entry;
+			return;
+		}
+
+		int route = this.allocRoute();
+		this.writableRoutes()[route] = entry;
+		this.prefixes.put(key, route);
+		this.fill(prefix, len, route, len, -1);
+	}
+
+	/**
+	 * Remove the route for a prefix, handing its addresses to the next
+	 * shorter prefix that covers them.
+	 * @return the removed route; null if there was no route for the prefix
+	 */
+	RouteEntry remove(int prefix, int len)
+	{
+		prefix &= mask(len);
+		Integer route = this.prefixes.remove(key(prefix, len));
+		if (null == route)
+		{ return null; }
+
+		// Any shorter prefix covering part of this one covers all of it
+		int cover = 0;
+		int coverLen = 0;
+		for (int l = len - 1; l >= 0; l--)
+		{
+			Integer shorter = this.prefixes.get(key(prefix & mask(l), l));
+			if (shorter != null)
+			{
+				cover = shorter;
+				coverLen = l;
+				break;
+			}
+		}
+
+		this.fill(prefix, len, cover, coverLen, route);
+		RouteEntry entry = this.routes[route];
+		this.freeRoute(route);
+		return entry;
+	}
+
+	/**
+	 * @return an immutable view of the trie as it is now
+	 */
+	Snapshot snapshot()
+	{
+		if (!this.dirty)
+		{ return this.snapshot; }
+
+		this.snapshot = new Snapshot(this.root, this.chunks, this.routes);
+		this.dirty = false;
+		this.generation++;
+		this.rootShared = true;
+		this.chunksShared = true;
+		this.routesShared = true;
+		return this.snapshot;
+	}
+
+	/**
+	 * Write a route into every slot a prefix covers, descending into chunks
+	 * as needed.
+	 * @param route the route to write
+	 * @param depth prefix length of the route to write
+	 * @param replace if -1, write over slots holding routes with prefixes no
+	 *        longer than depth; otherwise, write only over this route
+	 */
+	private void fill(int prefix, int len, int route, int depth, int replace)
+	{
+		if (len <= ROOT_BITS)
+		{
+			int first = prefix >>> ROOT_BITS;
+			int count = 1 << (ROOT_BITS - len);
+			this.fillSlots(ROOT, first, count, route, depth, replace);
+			return;
+		}
+
+		int level2 = this.chunkFor(ROOT, prefix >>> ROOT_BITS);
+		int index2 = (prefix >>> CHUNK_BITS) & 0xff;
+		if (len <= ROOT_BITS + CHUNK_BITS)
+		{
+			int count = 1 << (ROOT_BITS + CHUNK_BITS - len);
+			this.fillSlots(level2, index2, count, route, depth, replace);
+			return;
+		}
+
+		int level3 = this.chunkFor(level2, index2);
+		int count = 1 << (32 - len);
+		this.fillSlots(level3, prefix & 0xff, count, route, depth, replace);
+	}
+
+	private void fillSlots(int node, int first, int count, int route,
+			int depth, int replace)
+	{
+		int[] slots = this.slots(node);
+		byte[] depths = this.depths(node);
+		boolean writable = false;
+		for (int i = first; i < first + count; i++)
+		{
+			int slot = slots[i];
+			if (slot < 0)
+			{
+				// Longer prefixes live below; fill the whole chunk
+				this.fillSlots(-slot - 1, 0, CHUNK_SIZE, route, depth, replace);
+			}
+			else if ((replace < 0 && depths[i] <= depth) || slot == replace)
+			{
+				if (!writable)
+				{
+					slots = this.writableSlots(node);
+					writable = true;
+				}
+				slots[i] = route;
+				depths[i] = (byte)depth;
+			}
+		}
+	}
+
+	/**
+	 * @return the chunk a slot points to, creating it if the slot holds a
+	 *         route, in which case the new chunk starts out full of that route
+	 */
+	private int chunkFor(int node, int index)
+	{
+		int[] slots = this.slots(node);
+		if (slots[index] < 0)
+		{ return -slots[index] - 1; }
+
+		if (this.chunksShared || this.numChunks == this.chunks.length)
+		{
+			int length = this.chunks.length;
+			if (this.numChunks == length)
+			{ length *= 2; }
+			this.chunks = Arrays.copyOf(this.chunks, length);
+			this.chunksShared = false;
+			this.chunkDepth = Arrays.copyOf(this.chunkDepth, length);
+			this.chunkGeneration = Arrays.copyOf(this.chunkGeneration, length);
+		}
+		int chunk = this.numChunks++;
+		int[] slotsBelow = new int[CHUNK_SIZE];
+		byte[] depthsBelow = new byte[CHUNK_SIZE];
+		Arrays.fill(slotsBelow, slots[index]);
+		Arrays.fill(depthsBelow, this.depths(node)[index]);
+		this.chunks[chunk] = slotsBelow;
+		this.chunkDepth[chunk] = depthsBelow;
+		this.chunkGeneration[chunk] = this.generation;
+
+		this.writableSlots(node)[index] = -chunk - 1;
+		return chunk;
+	}
+
+	private int[] slots(int node)
+	{ return (ROOT == node) ? this.root : this.chunks[node]; }
+
+	/** Prefix lengths are never shared with snapshots */
+	private byte[] depths(int node)
+	{ return (ROOT == node) ? this.rootDepth : this.chunkDepth[node]; }
+
+	/**
+	 * @return a node's slots, copied first if a snapshot shares them
+	 */
+	private int[] writableSlots(int node)
+	{
+		this.dirty = true;
+		if (ROOT == node)
+		{
+			if (this.rootShared)
+			{
+				this.root = this.root.clone();
+				this.rootShared = false;
+			}
+			return this.root;
+		}
+
+		if (this.chunkGeneration[node] != this.generation)
+		{
+			if (this.chunksShared)
+			{
+				this.chunks = this.chunks.clone();
+				this.chunksShared = false;
+			}
+			this.chunks[node] = this.chunks[node].clone();
+			this.chunkGeneration[node] = this.generation;
+		}
+		return this.chunks[node];
+	}
+
+	private RouteEntry[] writableRoutes()
+	{
+		this.dirty = true;
+		if (this.routesShared)
+		{
+			this.routes = this.routes.clone();
+			this.routesShared = false;
+		}
+		return this.routes;
+	}
+
+	private int allocRoute()
+	{
+		if (this.numFree > 0)
+		{ return this.freeRoutes[--this.numFree]; }
+		if (this.nextRoute == this.routes.length)
+		{
+			this.routes = Arrays.copyOf(this.routes, this.routes.length * 2);
+			this.routesShared = false;
+		}
+		return this.nextRoute++;
+	}
+
+	private void freeRoute(int route)
+	{
+		this.writableRoutes()[route] = null;
+		if (this.numFree == this.freeRoutes.length)
+		{ this.freeRoutes = Arrays.copyOf(this.freeRoutes, this.numFree * 2); }
+		this.freeRoutes[this.numFree++] = route;
+	}
+}
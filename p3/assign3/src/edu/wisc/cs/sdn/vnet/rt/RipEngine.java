@@ -0,0 +1,561 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.RIPv2;
+import net.floodlightcontroller.packet.RIPv2Entry;
+import net.floodlightcontroller.packet.UDP;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.IfaceTable;
+import edu.wisc.cs.sdn.vnet.Log;
+
+/**
+ * A RIPv2 distance-vector engine that keeps a router's route table.
+ *
+ * Routes to the router's own subnets are added at start, and the router
+ * asks its neighbors for their tables. Every UPDATE_INTERVAL the whole
+ * table is sent out each interface; whenever a route changes, the routes
+ * changed since the last update are sent as a triggered update. Triggered
+ * updates are rate limited by a token bucket: a burst of TRIGGER_BURST
+ * goes out at once, so the table converges quickly, but after that one
+ * goes out per TRIGGER_INTERVAL and changes meanwhile, such as those of a
+ * flapping route, are collected into it. Messages carry up to
+ * RIPv2.MAX_ENTRIES routes each. Routes are advertised with
+ * split horizon and poison reverse: out the interface they were learned on
+ * they are advertised with metric INFINITY. A learned route not refreshed
+ * for ROUTE_TIMEOUT is removed from the route table and advertised as
+ * unreachable for GARBAGE_TIMEOUT before it is forgotten; meanwhile the
+ * neighbors are asked for their tables, to find another route at once.
+ *
+ * All timing runs on one scheduler thread; state is guarded by this.
+ */
+public class RipEngine
+{
+	/** Metric meaning unreachable */
+	public static final int INFINITY = 16;
+
+	/** Time between unsolicited updates, in milliseconds */
+	public static final long UPDATE_INTERVAL = 10000;
+
+	/** Time a learned route lasts without being refreshed, in milliseconds */
+	public static final long ROUTE_TIMEOUT = 30000;
+
+	/** Time an expired route is advertised as unreachable, in milliseconds */
+	public static final long GARBAGE_TIMEOUT = 20000;
+
+	/** Number of triggered updates that may be sent back to back */
+	public static final int TRIGGER_BURST = 5;
+
+	/** Time to earn another triggered update, in milliseconds */
+	public static final long TRIGGER_INTERVAL = 1000;
+
+	/** Time between checks for expired routes, in milliseconds */
+	private static final long SWEEP_INTERVAL = 1000;
+
+	private static final int RIP_MULTICAST = IPv4.toIPv4Address("224.0.0.9");
+
+	/** A route known to RIP */
+	private static class Route
+	{
+		private final int dstIp;
+		private final int maskIp;
+		private int gwIp;
+		private Iface iface;
+		private int metric;
+		private final boolean connected;
+
+		/** Time the route was last refreshed, in milliseconds */
+		private long refreshed;
+
+		private Route(int dstIp, int maskIp, int gwIp, Iface iface, int metric,
+				boolean connected, long now)
+		{
+			this.dstIp = dstIp;
+			this.maskIp = maskIp;
+			this.gwIp = gwIp;
+			this.iface = iface;
+			this.metric = metric;
+			this.connected = connected;
+			this.refreshed = now;
+		}
+	}
+
+	private final Router router;
+	private final RouteTable routeTable;
+
+	/** Routes by prefix length and prefix, as in LpmTrie */
+	private final Map<Long,Route> routes;
+
+	/** Routes changed since the last update, in the order they changed */
+	private final Set<Route> changed;
+
+	/** Whether a triggered update is already scheduled */
+	private boolean triggerPending;
+
+	/** Triggered updates that may be sent now, up to TRIGGER_BURST, and
+	 *  the time (in milliseconds) that count was last brought up to date */
+	private double triggerTokens;
+	private long triggerTokensTime;
+
+	private final ScheduledThreadPoolExecutor timer;
+
+	public RipEngine(Router router, RouteTable routeTable)
+	{
+		this.router = router;
+		this.routeTable = routeTable;
+		this.routes = new HashMap<Long,Route>();
+		this.changed = new LinkedHashSet<Route>();
+		this.triggerPending = false;
+		this.triggerTokens = TRIGGER_BURST;
+		this.triggerTokensTime = System.currentTimeMillis();
+		this.timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+		{
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "rip");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	private List<Iface> interfaces()
+	{
+		IfaceTable table = this.router.getInterfaceTable();
+		List<Iface> ifaces = new ArrayList<Iface>(table.size());
+		for (int i = 0; i < table.size(); i++)
+		{ ifaces.add(table.get(i)); }
+		return ifaces;
+	}
+
+	private static long key(int dstIp, int maskIp)
+	{ return ((long)maskIp << 32) | ((dstIp & maskIp) & 0xffffffffL); }
+
+	/**
+	 * Add routes to the router's subnets, ask the neighbors for their
+	 * routes, and start sending updates.
+	 */
+	public void start()
+	{
+		long now = System.currentTimeMillis();
+		synchronized(this)
+		{
+			this.routeTable.beginUpdate();
+			try
+			{
+				for (Iface iface : this.interfaces())
+				{
+					int maskIp = iface.getSubnetMask();
+					int dstIp = iface.getIpAddress() & maskIp;
+					Route route = new Route(dstIp, maskIp, 0, iface, 1, true, now);
+					this.routes.put(key(dstIp, maskIp), route);
+					this.changed.add(route);
+					this.install(route);
+				}
+			}
+			finally
+			{ this.routeTable.endUpdate(); }
+
+			for (Iface iface : this.interfaces())
+			{ this.sendRequest(iface); }
+		}
+
+		this.timer.scheduleAtFixedRate(new Runnable()
+		{
+			public void run()
+			{ sendUpdates(false); }
+		}, 0, UPDATE_INTERVAL, TimeUnit.MILLISECONDS);
+		this.timer.scheduleWithFixedDelay(new Runnable()
+		{
+			public void run()
+			{ expire(); }
+		}, SWEEP_INTERVAL, SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	public void shutdown()
+	{ this.timer.shutdownNow(); }
+
+	/**
+	 * @return true if a packet is a RIP message for this router
+	 */
+	public boolean isRipPacket(IPv4 ipPacket)
+	{
+		if (ipPacket.getProtocol() != IPv4.PROTOCOL_UDP)
+		{ return false; }
+		UDP udp = (UDP)ipPacket.getPayload();
+		if (udp.getDestinationPort() != UDP.RIP_PORT
+				|| !(udp.getPayload() instanceof RIPv2))
+		{ return false; }
+		int dstIp = ipPacket.getDestinationAddress();
+		return (RIP_MULTICAST == dstIp
+				|| this.router.getInterfaceByIp(dstIp) != null);
+	}
+
+	/**
+	 * Handle a RIP request or response.
+	 * @param etherPacket the packet, for which isRipPacket is true
+	 * @param inIface the interface on which the packet was received
+	 */
+	public void handlePacket(Ethernet etherPacket, Iface inIface)
+	{
+		IPv4 ipPacket = (IPv4)etherPacket.getPayload();
+		UDP udp = (UDP)ipPacket.getPayload();
+		RIPv2 rip = (RIPv2)udp.getPayload();
+		int srcIp = ipPacket.getSourceAddress();
+
+		// Ignore our own messages, and any from off the attached subnet
+		if (this.router.getInterfaceByIp(srcIp) != null
+				|| (srcIp & inIface.getSubnetMask())
+						!= (inIface.getIpAddress() & inIface.getSubnetMask()))
+		{ return; }
+
+		if (RIPv2.COMMAND_REQUEST == rip.getCommand())
+		{
+			synchronized(this)
+			{
+				this.send(inIface, etherPacket.getSourceMACAddress(), srcIp,
+						this.advertise(inIface, this.routes.values()));
+			}
+		}
+		else if (RIPv2.COMMAND_RESPONSE == rip.getCommand()
+				&& UDP.RIP_PORT == udp.getSourcePort())
+		{ this.handleResponse(rip, srcIp, inIface); }
+	}
+
+	private void handleResponse(RIPv2 rip, int srcIp, Iface inIface)
+	{
+		long now = System.currentTimeMillis();
+		boolean changed = false;
+		synchronized(this)
+		{
+			this.routeTable.beginUpdate();
+			try
+			{
+				for (RIPv2Entry entry : rip.getEntries())
+				{
+					if (entry.getAddressFamily() != RIPv2Entry.ADDRESS_FAMILY_IPv4
+							|| entry.getMetric() < 1
+							|| entry.getMetric() > INFINITY)
+					{ continue; }
+					int gwIp = srcIp;
+					if (entry.getNextHopAddress() != 0
+							&& (entry.getNextHopAddress() & inIface.getSubnetMask())
+							== (inIface.getIpAddress() & inIface.getSubnetMask()))
+					{ gwIp = entry.getNextHopAddress(); }
+					changed |= this.learn(entry.getAddress(),
+							entry.getSubnetMask(), gwIp, inIface,
+							Math.min(entry.getMetric() + 1, INFINITY), now);
+				}
+			}
+			finally
+			{ this.routeTable.endUpdate(); }
+
+			if (changed)
+			{ this.trigger(); }
+		}
+	}
+
+	/**
+	 * Apply one advertised route; called with this locked.
+	 * @return true if the route changed
+	 */
+	private boolean learn(int dstIp, int maskIp, int gwIp, Iface iface,
+			int metric, long now)
+	{
+		dstIp &= maskIp;
+		long key = key(dstIp, maskIp);
+		Route route = this.routes.get(key);
+		if (null == route)
+		{
+			if (metric >= INFINITY)
+			{ return false; }
+			route = new Route(dstIp, maskIp, gwIp, iface, metric, false, now);
+			this.routes.put(key, route);
+			this.changed.add(route);
+			this.install(route);
+			return true;
+		}
+		if (route.connected)
+		{ return false; }
+
+		boolean sameNeighbor = (route.gwIp == gwIp && route.iface == iface);
+		if (sameNeighbor)
+		{
+			// The route's own neighbor is always believed
+			if (metric < INFINITY)
+			{ route.refreshed = now; }
+			if (metric == route.metric)
+			{ return false; }
+			if (metric >= INFINITY)
+			{ this.unreachable(route, now); }
+			else
+			{
+				boolean wasReachable = (route.metric < INFINITY);
+				route.metric = metric;
+				if (wasReachable)
+				{ this.routeTable.update(dstIp, maskIp, gwIp, iface); }
+				else
+				{ this.install(route); }
+			}
+			this.changed.add(route);
+			return true;
+		}
+
+		if (metric < route.metric)
+		{
+			boolean wasReachable = (route.metric < INFINITY);
+			route.gwIp = gwIp;
+			route.iface = iface;
+			route.metric = metric;
+			route.refreshed = now;
+			if (wasReachable)
+			{ this.routeTable.update(dstIp, maskIp, gwIp, iface); }
+			else
+			{ this.install(route); }
+			this.changed.add(route);
+			return true;
+		}
+		return false;
+	}
+
+	/** Put a route in the route table; called with this locked */
+	private void install(Route route)
+	{
+		if (null == this.routeTable.find(route.dstIp, route.maskIp))
+		{
+			this.routeTable.insert(route.dstIp, route.gwIp, route.maskIp,
+					route.iface);
+		}
+		else
+		{
+			this.routeTable.update(route.dstIp, route.maskIp, route.gwIp,
+					route.iface);
+		}
+	}
+
+	/**
+	 * Take a route out of the route table, keeping it to advertise as
+	 * unreachable; called with this locked.
+	 */
+	private void unreachable(Route route, long now)
+	{
+		route.metric = INFINITY;
+		route.refreshed = now;
+		this.changed.add(route);
+		this.routeTable.remove(route.dstIp, route.maskIp);
+	}
+
+	/** Expire routes not refreshed in time, and forget expired ones */
+	private void expire()
+	{
+		long now = System.currentTimeMillis();
+		boolean changed = false;
+		synchronized(this)
+		{
+			this.routeTable.beginUpdate();
+			try
+			{
+				Iterator<Route> it = this.routes.values().iterator();
+				while (it.hasNext())
+				{
+					Route route = it.next();
+					if (route.connected)
+					{ continue; }
+					if (route.metric < INFINITY)
+					{
+						if (now - route.refreshed >= ROUTE_TIMEOUT)
+						{
+							this.unreachable(route, now);
+							changed = true;
+						}
+					}
+					else if (now - route.refreshed >= GARBAGE_TIMEOUT)
+					{
+						it.remove();
+						this.changed.remove(route);
+					}
+				}
+			}
+			finally
+			{ this.routeTable.endUpdate(); }
+
+			// Ask the neighbors for their tables, so an alternative to an 
+			// expired route is learned now rather than at their next update
+			if (changed)
+			{
+				this.trigger();
+				for (Iface iface : this.interfaces())
+				{ this.sendRequest(iface); }
+			}
+		}
+	}
+
+	/** 
+	 * Schedule a triggered update, unless one is pending: at once if a 
+	 * token is left, otherwise when one will be; called with this locked.
+	 */
+	private void trigger()
+	{
+		if (this.triggerPending)
+		{ return; }
+		this.triggerPending = true;
+		this.refillTriggerTokens();
+		long delay = 0;
+		if (this.triggerTokens < 1)
+		{
+			// Jitter the wait, so neighbors do not fall into step
+			delay = (long)((1 - this.triggerTokens) * TRIGGER_INTERVAL)
+					+ ThreadLocalRandom.current().nextLong(TRIGGER_INTERVAL / 10);
+		}
+		this.timer.schedule(new Runnable()
+		{
+			public void run()
+			{ sendUpdates(true); }
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Send routes out every interface.
+	 * @param changedOnly true to send only routes changed since the last
+	 *        update
+	 */
+	private void sendUpdates(boolean changedOnly)
+	{
+		synchronized(this)
+		{
+			Collection<Route> routes = 
+					changedOnly ? this.changed : this.routes.values();
+			int count = routes.size();
+			if (changedOnly)
+			{
+				this.triggerPending = false;
+				if (0 == count)
+				{ return; }
+				this.takeTriggerToken();
+			}
+			for (Iface iface : this.interfaces())
+			{
+				List<RIPv2Entry> entries = this.advertise(iface, routes);
+				if (!entries.isEmpty())
+				{ this.send(iface, null, RIP_MULTICAST, entries); }
+			}
+
+			// Either way, every change has now been advertised
+			this.changed.clear();
+			Log.debug(() -> "RIP sent " + (changedOnly ? "triggered" : "periodic")
+					+ " update of " + count + " routes");
+		}
+	}
+
+	/** Spend a token on a triggered update; called with this locked */
+	private void takeTriggerToken()
+	{
+		this.refillTriggerTokens();
+		this.triggerTokens -= 1;
+	}
+
+	/** Earn tokens for the time since the last refill; called locked */
+	private void refillTriggerTokens()
+	{
+		long now = System.currentTimeMillis();
+		this.triggerTokens = Math.min(TRIGGER_BURST, this.triggerTokens
+				+ (double)(now - this.triggerTokensTime) / TRIGGER_INTERVAL);
+		this.triggerTokensTime = now;
+	}
+
+	/**
+	 * Build the entries to advertise out an interface, with split horizon
+	 * and poison reverse; called with this locked.
+	 */
+	private List<RIPv2Entry> advertise(Iface iface, Collection<Route> routes)
+	{
+		List<RIPv2Entry> entries = new ArrayList<RIPv2Entry>(routes.size());
+		for (Route route : routes)
+		{
+			int metric = route.metric;
+			if (!route.connected && route.iface == iface)
+			{ metric = INFINITY; }
+			entries.add(new RIPv2Entry(route.dstIp, route.maskIp, metric));
+		}
+		return entries;
+	}
+
+	private void sendRequest(Iface iface)
+	{
+		// A request for the whole table: one entry, family 0, metric 16
+		RIPv2Entry entry = new RIPv2Entry(0, 0, INFINITY);
+		entry.setAddressFamily((short)0);
+		List<RIPv2Entry> entries = new ArrayList<RIPv2Entry>();
+		entries.add(entry);
+		this.sendMessage(iface, null, RIP_MULTICAST, RIPv2.COMMAND_REQUEST,
+				entries);
+	}
+
+	private void send(Iface iface, byte[] dstMac, int dstIp,
+			List<RIPv2Entry> entries)
+	{
+		this.sendMessage(iface, dstMac, dstIp, RIPv2.COMMAND_RESPONSE,
+				entries);
+	}
+
+	/**
+	 * Send entries in as many messages as needed, RIPv2.MAX_ENTRIES each.
+	 * @param dstMac destination MAC address; null to broadcast
+	 */
+	private void sendMessage(Iface iface, byte[] dstMac, int dstIp,
+			byte command, List<RIPv2Entry> entries)
+	{
+		for (int i = 0; i < entries.size(); i += RIPv2.MAX_ENTRIES)
+		{
+			List<RIPv2Entry> batch = entries.subList(i, 
+					Math.min(i + RIPv2.MAX_ENTRIES, entries.size()));
+			this.sendOne(iface, dstMac, dstIp, command, batch);
+		}
+	}
+
+	private void sendOne(Iface iface, byte[] dstMac, int dstIp,
+			byte command, List<RIPv2Entry> entries)
+	{
+		Ethernet ether = new Ethernet();
+		IPv4 ip = new IPv4();
+		UDP udp = new UDP();
+		RIPv2 rip = new RIPv2();
+		ether.setPayload(ip);
+		ip.setPayload(udp);
+		udp.setPayload(rip);
+
+		ether.setEtherType(Ethernet.TYPE_IPv4);
+		ether.setSourceMACAddress(iface.getMacAddress().toBytes());
+		if (null == dstMac)
+		{ ether.setDestinationMACAddress("FF:FF:FF:FF:FF:FF"); }
+		else
+		{ ether.setDestinationMACAddress(dstMac); }
+
+		ip.setTtl((byte)64);
+		ip.setProtocol(IPv4.PROTOCOL_UDP);
+		ip.setSourceAddress(iface.getIpAddress());
+		ip.setDestinationAddress(dstIp);
+
+		udp.setSourcePort(UDP.RIP_PORT);
+		udp.setDestinationPort(UDP.RIP_PORT);
+
+		rip.setCommand(command);
+		rip.setEntries(entries);
+
+		this.router.sendPacket(ether, iface);
+	}
+}
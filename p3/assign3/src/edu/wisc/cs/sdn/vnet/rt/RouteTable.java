@@ -4,8 +4,11 @@ import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -19,14 +22,113 @@ import edu.wisc.cs.sdn.vnet.Iface;
  */
 public class RouteTable 
 {
-	/** Entries in the route table */
-	private List<RouteEntry> entries; 
+	/** Entries in the route table by mask and prefix, as in LpmTrie; the
+	 *  entries for one prefix are in the order they were added */
+	private Map<Long,List<RouteEntry>> entries; 
+	
+	/** Longest prefix match index over the entries with contiguous masks; 
+	 *  of several entries for the same prefix, the first added is indexed */
+	private LpmTrie trie;
+	
+	/** Entries whose masks are not contiguous, which the trie cannot hold */
+	private List<RouteEntry> irregular;
+	
+	/** What lookups see; replaced, never modified, when the table changes */
+	private volatile Snapshot current;
+	
+	/** Count of snapshots published, so caches can tell they are stale */
+	private volatile int generation;
+	
+	/** Nesting depth of beginUpdate() calls; changes are published at 0 */
+	private int updateDepth;
+	
+	/**
+	 * An immutable view of the table, read by lookups without locking.
+	 */
+	private static final class Snapshot
+	{
+		private final LpmTrie.Snapshot trie;
+		private final RouteEntry[] irregular;
+		
+		private Snapshot(LpmTrie.Snapshot trie, RouteEntry[] irregular)
+		{
+			this.trie = trie;
+			this.irregular = irregular;
+		}
+	}
 	
 	/**
 	 * Initialize an empty route table.
 	 */
 	public RouteTable()
-	{ this.entries = new LinkedList<RouteEntry>(); }
+	{
+		this.entries = new LinkedHashMap<Long,List<RouteEntry>>();
+		this.trie = new LpmTrie();
+		this.irregular = new LinkedList<RouteEntry>();
+		this.updateDepth = 0;
+		this.publish();
+	}
+	
+	/**
+	 * Start a batch of changes. Lookups keep seeing the table as it was
+	 * until the matching call to endUpdate().
+	 */
+	public void beginUpdate()
+	{
+		synchronized(this.entries)
+		{ this.updateDepth++; }
+	}
+	
+	/**
+	 * Finish a batch of changes, publishing them to lookups if this ends
+	 * the outermost batch.
+	 */
+	public void endUpdate()
+	{
+		synchronized(this.entries)
+		{
+			this.updateDepth--;
+			if (0 == this.updateDepth)
+			{ this.publish(); }
+		}
+	}
+	
+	/**
+	 * Publish the table to lookups, unless a batch of changes is under way;
+	 * called with the entries locked.
+	 */
+	private void changed()
+	{
+		if (0 == this.updateDepth)
+		{ this.publish(); }
+	}
+	
+	private void publish()
+	{
+		this.current = new Snapshot(this.trie.snapshot(), 
+				this.irregular.toArray(new RouteEntry[0]));
+		this.generation++;
+	}
+	
+	/**
+	 * @return a number that changes whenever lookups may start returning
+	 *         different results
+	 */
+	public int getGeneration()
+	{ return this.generation; }
+	
+	private static long key(int dstIp, int maskIp)
+	{ return ((long)maskIp << 32) | ((dstIp & maskIp) & 0xffffffffL); }
+	
+	/**
+	 * @param mask a subnet mask
+	 * @return the mask's prefix length; -1 if its ones are not contiguous
+	 */
+	private static int prefixLength(int mask)
+	{
+		int len = Integer.bitCount(mask);
+		return (LpmTrie.mask(len) == mask) ? len : -1;
+	}
 	
 	/**
 	 * Lookup the route entry that matches a given IP address.
@@ -35,29 +137,31 @@ public class RouteTable
 	 */
 	public RouteEntry lookup(int ip)
 	{
-		synchronized(this.entries)
-        {
-			/*****************************************************************/
-			/* TODO: Find the route entry with the longest prefix match      */
-			
-	        RouteEntry bestMatch = null;
-	        for (RouteEntry entry : this.entries)
-	        {
-	           int maskedDst = ip & entry.getMaskAddress();
-	           int entrySubnet = entry.getDestinationAddress() 
-	               & entry.getMaskAddress();
-	           if (maskedDst == entrySubnet)
-	           {
-	        	   if ((null == bestMatch) 
-	        		   || (entry.getMaskAddress() > bestMatch.getMaskAddress()))
-	        	   { bestMatch = entry; }
-	           }
-	        }
-			
-			return bestMatch;
-			
-			/*****************************************************************/
-        }
+		/*****************************************************************/
+		/* TODO: Find the route entry with the longest prefix match      */
+		
+		// No lock: the snapshot never changes once published
+		Snapshot snapshot = this.current;
+		RouteEntry bestMatch = snapshot.trie.lookup(ip);
+		
+		// Masks compare as unsigned, so that /1 (0x80000000) beats /0
+		for (RouteEntry entry : snapshot.irregular)
+		{
+			int maskedDst = ip & entry.getMaskAddress();
+			int entrySubnet = entry.getDestinationAddress() 
+					& entry.getMaskAddress();
+			if (maskedDst == entrySubnet)
+			{
+				if ((null == bestMatch) 
+						|| (Integer.compareUnsigned(entry.getMaskAddress(),
+								bestMatch.getMaskAddress()) > 0))
+				{ bestMatch = entry; }
+			}
+		}
+		
+		return bestMatch;
+		
+		/*****************************************************************/
 	}
 	
 	/**
@@ -81,6 +185,16 @@ public class RouteTable
 			return false;
 		}
 		
+		// Publish the whole file at once
+		this.beginUpdate();
+		try
+		{ return this.loadEntries(reader, router); }
+		finally
+		{ this.endUpdate(); }
+	}
+	
+	private boolean loadEntries(BufferedReader reader, Router router)
+	{
 		while (true)
 		{
 			// Read a route entry from the file
@@ -164,10 +278,27 @@ public class RouteTable
 		RouteEntry entry = new RouteEntry(dstIp, gwIp, maskIp, iface);
         synchronized(this.entries)
         { 
-            this.entries.add(entry);
+            List<RouteEntry> same = this.entries.computeIfAbsent(
+            		key(dstIp, maskIp), k -> new ArrayList<RouteEntry>(1));
+            same.add(entry);
+            this.index(entry, same.size() == 1);
+            this.changed();
         }
 	}
 	
+	/**
+	 * Add an entry to the trie if it is the first for its prefix, or to the
+	 * irregular entries if its mask is not contiguous.
+	 */
+	private void index(RouteEntry entry, boolean first)
+	{
+		int len = prefixLength(entry.getMaskAddress());
+		if (len < 0)
+		{ this.irregular.add(entry); }
+		else if (first)
+		{ this.trie.put(entry.getDestinationAddress(), len, entry); }
+	}
+	
 	/**
 	 * Remove an entry from the route table.
 	 * @param dstIP destination IP of the entry to remove
@@ -178,10 +309,27 @@ public class RouteTable
 	{ 
         synchronized(this.entries)
         {
-            RouteEntry entry = this.find(dstIp, maskIp);
-            if (null == entry)
+            long key = key(dstIp, maskIp);
+            List<RouteEntry> same = this.entries.get(key);
+            int i = indexOf(same, dstIp);
+            if (i < 0)
             { return false; }
-            this.entries.remove(entry);
+            RouteEntry entry = same.remove(i);
+            if (same.isEmpty())
+            { this.entries.remove(key); }
+            
+            int len = prefixLength(maskIp);
+            if (len < 0)
+            { this.irregular.remove(entry); }
+            else if (0 == i)
+            {
+            	// Hand the prefix to the next entry for it, if there is one
+            	if (same.isEmpty())
+            	{ this.trie.remove(dstIp, len); }
+            	else
+            	{ this.trie.put(dstIp, len, same.get(0)); }
+            }
+            this.changed();
         }
         return true;
     }
@@ -199,11 +347,21 @@ public class RouteTable
 	{
         synchronized(this.entries)
         {
-            RouteEntry entry = this.find(dstIp, maskIp);
-            if (null == entry)
+            List<RouteEntry> same = this.entries.get(key(dstIp, maskIp));
+            int i = indexOf(same, dstIp);
+            if (i < 0)
             { return false; }
-            entry.setGatewayAddress(gwIp);
-            entry.setInterface(iface);
+            
+            // Replace the entry rather than modify it, so lookups never see 
+            // a new gateway with an old interface
+            RouteEntry updated = new RouteEntry(dstIp, gwIp, maskIp, iface);
+            RouteEntry entry = same.set(i, updated);
+            int len = prefixLength(maskIp);
+            if (len < 0)
+            { this.irregular.set(this.irregular.indexOf(entry), updated); }
+            else if (0 == i)
+            { this.trie.put(dstIp, len, updated); }
+            this.changed();
         }
         return true;
 	}
@@ -218,14 +376,26 @@ public class RouteTable
     {
         synchronized(this.entries)
         {
-            for (RouteEntry entry : this.entries)
-            {
-                if ((entry.getDestinationAddress() == dstIp)
-                    && (entry.getMaskAddress() == maskIp)) 
-                { return entry; }
-            }
+            List<RouteEntry> same = this.entries.get(key(dstIp, maskIp));
+            int i = indexOf(same, dstIp);
+            return (i < 0) ? null : same.get(i);
         }
-        return null;
+    }
+    
+    /**
+     * @param same the entries for one prefix; may be null
+     * @return index of the first of them with the destination IP; -1 if none
+     */
+    private static int indexOf(List<RouteEntry> same, int dstIp)
+    {
+    	if (null == same)
+    	{ return -1; }
+    	for (int i = 0; i < same.size(); i++)
+    	{
+    		if (same.get(i).getDestinationAddress() == dstIp)
+    		{ return i; }
+    	}
+    	return -1;
     }
 	
 	public String toString()
@@ -236,8 +406,11 @@ public class RouteTable
             { return " WARNING: route table empty"; }
             
             String result = "Destination\tGateway\t\tMask\t\tIface\n";
-            for (RouteEntry entry : entries)
-            { result += entry.toString()+"\n"; }
+            for (List<RouteEntry> same : this.entries.values())
+            {
+            	for (RouteEntry entry : same)
+            	{ result += entry.toString()+"\n"; }
+            }
 		    return result;
         }
 	}
@@ -4,7 +4,9 @@ import java.util.*;
 import java.nio.ByteBuffer;
 import edu.wisc.cs.sdn.vnet.Device;
 import edu.wisc.cs.sdn.vnet.DumpFile;
+import edu.wisc.cs.sdn.vnet.Frame;
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.Log;
 
 import net.floodlightcontroller.packet.*;
 
@@ -19,13 +21,15 @@ public class Router extends Device
 	/** ARP cache for the router */
 	private ArpCache arpCache;
 
-	private TimeThread check_arp;
-	private unsolicitedThread unsolicited_thread;
-	public Map<Integer, LinkedList> ip_queues;
-	public Map<Integer, Long> time;
-	public Map<Integer, Integer> count;
-	public Map<Ethernet, Iface> pair;
-	public Map<RouteEntry, Long> entry_timings;
+	/** Cache of forwarding decisions for the fast path; null if disabled */
+	private volatile FibCache fibCache;
+
+	/** Queues packets while their next hops are resolved */
+	private ArpResolver arpResolver;
+
+	/** RIP engine keeping the route table; null if routes are static */
+	private volatile RipEngine rip;
+
 	/**
 	 * Creates a router for a specific host.
 	 * @param host hostname for the router
@@ -35,14 +39,9 @@ public class Router extends Device
 		super(host,logfile);
 		this.routeTable = new RouteTable();
 		this.arpCache = new ArpCache();
-		this.ip_queues = new HashMap<Integer, LinkedList>();
-		this.time = new HashMap<Integer, Long>();
-		this.count = new HashMap<Integer, Integer>();
-		this.pair = new HashMap<Ethernet, Iface>();
-		this.check_arp = new TimeThread(ip_queues, time, count, pair);
-		this.check_arp.start();
-		this.entry_timings = new HashMap<RouteEntry, Long>();
-		this.unsolicited_thread = new unsolicitedThread(this, this.entry_timings);
+		this.fibCache = new FibCache(this.routeTable, this.arpCache, 
+				FibCache.DEFAULT_SIZE);
+		this.arpResolver = new ArpResolver(this, this.arpCache);
 	}
 
 	/**
@@ -51,6 +50,28 @@ public class Router extends Device
 	public RouteTable getRouteTable()
 	{ return this.routeTable; }
 
+	/**
+	 * @return cache of forwarding decisions; null if disabled
+	 */
+	public FibCache getFibCache()
+	{ return this.fibCache; }
+
+	/**
+	 * @param size number of forwarding decisions to cache; 0 disables the
+	 *        cache
+	 */
+	public void setFibCacheSize(int size)
+	{
+		this.fibCache = (size > 0) 
+				? new FibCache(this.routeTable, this.arpCache, size) : null;
+	}
+
+	/**
+	 * @return resolver holding packets whose next hops are unresolved
+	 */
+	public ArpResolver getArpResolver()
+	{ return this.arpResolver; }
+
 	/**
 	 * Load a new routing table from a file.
 	 * @param routeTableFile the name of the file containing the routing table
@@ -70,53 +91,13 @@ public class Router extends Device
 		System.out.println("-------------------------------------------------");
 	}
 
-	public void runRIP() {
-		if(this.interfaces == null)
-			return;
-		for(Iface iface : this.interfaces.values()) {
-			if(iface == null) continue;
-			int dstIp = iface.getIpAddress();
-			int gwIp = 0;
-			int maskIp = iface.getSubnetMask();
-			routeTable.insert(dstIp, gwIp, maskIp, iface);
-			RouteEntry e = new RouteEntry(dstIp, gwIp, maskIp, iface);
-			synchronized(this.entry_timings) {entry_timings.put(e, System.currentTimeMillis()); }
-			send_rip_packet(iface, 0, false);
-		}
-		this.unsolicited_thread.start();
-	}
-
-	public void send_rip_packet(Iface iface, int type, boolean is_unsolicited) {
-		Ethernet ether = new Ethernet();
-		IPv4 ip = new IPv4();
-		UDP udp = new UDP();
-		ether.setPayload(ip);
-		ip.setPayload(udp);
-	
-		// request
-		if(type == 0 || is_unsolicited) {
-			ether.setEtherType(Ethernet.TYPE_IPv4);
-			ether.setDestinationMACAddress("FF:FF:FF:FF:FF:FF");
-
-			ip.setTtl((byte)64);
-			ip.setProtocol(IPv4.PROTOCOL_UDP);
-			ip.setDestinationAddress("224.0.0.9");
-			udp.setSourcePort(UDP.RIP_PORT);
-			udp.setDestinationPort(UDP.RIP_PORT);
-		}
-
-		// response
-		if(type == 1) {
-			ether.setEtherType(Ethernet.TYPE_IPv4);
-			ether.setDestinationMACAddress(iface.getMacAddress().toBytes());
-
-			ip.setTtl((byte)64);
-			ip.setProtocol(IPv4.PROTOCOL_UDP);
-			ip.setDestinationAddress(iface.getIpAddress());
-			udp.setSourcePort(UDP.RIP_PORT);
-			udp.setDestinationPort(UDP.RIP_PORT);
-		}
-		boolean check = this.sendPacket(ether, iface);
+	/**
+	 * Build the routing table with RIP, instead of loading it from a file.
+	 */
+	public void runRIP()
+	{
+		this.rip = new RipEngine(this, this.routeTable);
+		this.rip.start();
 	}
 
 	/**
@@ -138,14 +119,174 @@ public class Router extends Device
 		System.out.println("----------------------------------");
 	}
 
+	/**
+	 * Report how well the forwarding cache and ARP queues did, then shut
+	 * down.
+	 */
+	public void destroy()
+	{
+		FibCache fib = this.fibCache;
+		if (fib != null)
+		{ Log.info(fib.toString()); }
+		Log.info(this.arpResolver.toString());
+		this.arpResolver.shutdown();
+		if (this.rip != null)
+		{ this.rip.shutdown(); }
+		super.destroy();
+	}
+
+	/**
+	 * The route table and ARP cache can be read concurrently, and the ARP
+	 * resolver guards the packets waiting on it.
+	 */
+	public boolean isConcurrent()
+	{ return true; }
+
+	/**
+	 * Handle a frame straight from the VNS server. The IPv4 header checksum is
+	 * checked on the received bytes, so bad packets are dropped before they
+	 * are parsed and good ones need not be serialized again to check it.
+	 * @param frame the frame that was received
+	 */
+	public void handleFrame(Frame frame)
+	{
+		byte[] data = frame.getData();
+		int offset = frame.getOffset();
+		int end = offset + frame.getLength();
+		boolean checked = false;
+		if (end >= offset + 14 && Ethernet.TYPE_IPv4 ==
+				(short)(((data[offset + 12] & 0xff) << 8) | (data[offset + 13] & 0xff)))
+		{
+			if (!IpChecksum.verifyHeader(data, offset + 14, end))
+			{
+				frame.release();
+				return;
+			}
+			if (this.forwardFast(frame))
+			{ return; }
+			checked = true;
+		}
+
+		Ethernet etherPacket = frame.toEthernet();
+		Iface inIface = frame.getInIface();
+		frame.release();
+		this.handlePacket(etherPacket, inIface, checked);
+	}
+
+	/**
+	 * Forward a plain transit IPv4 packet without parsing it into objects:
+	 * look up the route and next hop from the raw header, then rewrite the
+	 * MAC addresses, TTL and checksum in place and send the same bytes.
+	 * Anything needing more than that (local delivery, RIP, an expiring TTL,
+	 * no route, or no ARP entry yet) is left for the slow path.
+	 * @param frame an untagged IPv4 frame whose header checksum is good
+	 * @return true if the frame was forwarded and released; false if it
+	 *         needs the slow path
+	 */
+	private boolean forwardFast(Frame frame)
+	{
+		byte[] data = frame.getData();
+		int eth = frame.getOffset();
+		int ip = eth + 14;
+		int end = eth + frame.getLength();
+		int headerLen = (data[ip] & 0x0f) * 4;
+
+		// An expiring TTL needs an ICMP time exceeded
+		int ttl = data[ip + 8] & 0xff;
+		if (ttl <= 1)
+		{ return false; }
+
+		// Local and multicast or broadcast traffic is the router's to handle
+		int dstAddr = ByteBuffer.wrap(data, ip + 16, 4).getInt();
+		if ((dstAddr >>> 28) >= 0xe || this.getInterfaceByIp(dstAddr) != null)
+		{ return false; }
+
+		// So are RIP messages, which are recognized by their source port
+		byte protocol = data[ip + 9];
+		boolean firstFragment = (0 == (((data[ip + 6] & 0x1f) << 8) 
+				| (data[ip + 7] & 0xff)));
+		if (IPv4.PROTOCOL_UDP == protocol && firstFragment
+				&& ip + headerLen + 2 <= end
+				&& UDP.RIP_PORT == (short)(((data[ip + headerLen] & 0xff) << 8) 
+						| (data[ip + headerLen + 1] & 0xff)))
+		{ return false; }
+
+		// Route and next hop lookup; with no route the packet needs an ICMP 
+		// net unreachable, and without an ARP entry it must wait in the ARP 
+		// queue
+		Iface outIface;
+		long nextHopMac;
+		FibCache fib = this.fibCache;
+		if (fib != null)
+		{
+			FibCache.Entry fibEntry = fib.lookup(dstAddr);
+			if (null == fibEntry)
+			{ return false; }
+			outIface = fibEntry.getInterface();
+			nextHopMac = fibEntry.getNextHopMac();
+		}
+		else
+		{
+			RouteEntry bestMatch = this.routeTable.lookup(dstAddr);
+			if (null == bestMatch)
+			{ return false; }
+			int nextHop = bestMatch.getGatewayAddress();
+			if (0 == nextHop)
+			{ nextHop = dstAddr; }
+			ArpEntry arpEntry = this.arpCache.lookup(nextHop);
+			if (null == arpEntry)
+			{ return false; }
+			outIface = bestMatch.getInterface();
+			nextHopMac = arpEntry.getMac().toLong();
+		}
+		if (outIface == frame.getInIface())
+		{
+			frame.release();
+			return true;
+		}
+
+		// Rewrite in place: MAC addresses, then TTL and its checksum
+		putMac(data, eth, nextHopMac);
+		putMac(data, eth + 6, outIface.getMacAddress().toLong());
+		data[ip + 8] = (byte)(ttl - 1);
+		short checksum = (short)(((data[ip + 10] & 0xff) << 8) 
+				| (data[ip + 11] & 0xff));
+		checksum = IpChecksum.updateTtl(checksum, (byte)ttl, (byte)(ttl - 1),
+				protocol);
+		data[ip + 10] = (byte)(checksum >>> 8);
+		data[ip + 11] = (byte)checksum;
+
+		Log.packet(Log.samplePacket(), () -> "*** -> Fast-path forwarded to " 
+				+ IPv4.fromIPv4Address(dstAddr) + " out " + outIface.getName());
+		this.sendFrame(data, eth, frame.getLength(), outIface);
+		frame.release();
+		return true;
+	}
+
+	private static void putMac(byte[] data, int offset, long mac)
+	{
+		for (int i = 5; i >= 0; i--)
+		{
+			data[offset + i] = (byte)mac;
+			mac >>>= 8;
+		}
+	}
+
 	/**
 	 * Handle an Ethernet packet received on a specific interface.
 	 * @param etherPacket the Ethernet packet that was received
 	 * @param inIface the interface on which the packet was received
 	 */
 	public void handlePacket(Ethernet etherPacket, Iface inIface)
+	{ this.handlePacket(etherPacket, inIface, false); }
+
+	/**
+	 * @param checked true if the IPv4 header checksum is already known good
+	 */
+	private void handlePacket(Ethernet etherPacket, Iface inIface,
+			boolean checked)
 	{
-		System.out.println("*** -> Received packet: " +
+		Log.packet(Log.samplePacket(), () -> "*** -> Received packet: " +
 				etherPacket.toString().replace("\n", "\n\t"));
 
 		/********************************************************************/
@@ -153,63 +294,20 @@ public class Router extends Device
 		switch(etherPacket.getEtherType())
 		{
 			case Ethernet.TYPE_IPv4:
-				this.handleIpPacket(etherPacket, inIface);
+				this.handleIpPacket(etherPacket, inIface, checked);
 				break;
 			case Ethernet.TYPE_ARP:
-				System.out.println("arp packet received ***");
+				Log.trace(() -> "arp packet received ***");
 				this.handleARP(etherPacket, inIface);
 				break;
 			default:
-				System.out.println("other type received");
+				Log.trace(() -> "other type received");
 			// Ignore all other packet types, for now
 		}
 
 		/********************************************************************/
 	}
 
-	private void handleUDP(Ethernet etherPacket, Iface inIface) {
-
-		IPv4 ipPacket = (IPv4)etherPacket.getPayload();
-		UDP udp = (UDP)ipPacket.getPayload();
-		int temp = IPv4.toIPv4Address("224.0.0.9");
-		
-		// bad
-		if(ipPacket.getDestinationAddress() != temp || ipPacket.getProtocol() != IPv4.PROTOCOL_UDP || 
-			udp.getDestinationPort() != (short)520) {
-			return;
-		}
-
-		// receving reponse
-		if(ipPacket.getDestinationAddress() == inIface.getIpAddress()) {
-			// check if the IP is in the table already
-			int dstIp = inIface.getIpAddress();
-			int gwIp = 0;
-			int maskIp = inIface.getSubnetMask();
-			RouteEntry entry = routeTable.find(dstIp, maskIp);
-			if(entry == null) {
-				routeTable.insert(dstIp, gwIp, maskIp, inIface);
-				RouteEntry e = new RouteEntry(dstIp, gwIp, maskIp, inIface);
-				synchronized(this.entry_timings) {entry_timings.put(e, System.currentTimeMillis()); }
-			}
-			else {
-				// nothing changes
-				if(entry.getDestinationAddress() == dstIp && entry.getMaskAddress() == maskIp
-						&& entry.getInterface().toString().equalsIgnoreCase(inIface.toString()))
-					return;
-				else {
-				// update time
-					routeTable.update(dstIp, gwIp, maskIp, inIface);
-					send_rip_packet(inIface, 1, false);
-					synchronized(this.entry_timings) {entry_timings.put(entry, System.currentTimeMillis()); }
-				}
-			}
-		}
-
-		// receving request, sending reponse
-		if(ipPacket.getDestinationAddress() == temp) 
-			send_rip_packet(inIface, 1, false);
-	}
-
 	private void handleARP(Ethernet etherPacket, Iface inIface)
 	{
 		if (etherPacket.getEtherType() == Ethernet.TYPE_ARP) {
@@ -238,24 +336,16 @@ public class Router extends Device
 				}
 			}
 			else if(arpPacket.getOpCode() == ARP.OP_REPLY) {
-				synchronized(this.ip_queues) {
-					int targetIp = ByteBuffer.wrap(arpPacket.getSenderProtocolAddress()).getInt();
-					LinkedList<Ethernet> currList = ip_queues.get(targetIp);
-
-					this.arpCache.insert(MACAddress.valueOf(arpPacket.getSenderHardwareAddress()), targetIp);
-					for(int i = 0 ; i < currList.size() ; i++ ) {
-						Ethernet currPkt = currList.get(i);
-							currPkt.setDestinationMACAddress(arpPacket.getSenderHardwareAddress());
-							this.sendPacket(currPkt, inIface);
-					}
-					currList.clear();
-					synchronized(this.count) {count.put(targetIp, 0); }
-				}
+				int targetIp = ByteBuffer.wrap(arpPacket.getSenderProtocolAddress()).getInt();
+				MACAddress mac = MACAddress.valueOf(arpPacket.getSenderHardwareAddress());
+				this.arpCache.insert(mac, targetIp);
+				this.arpResolver.resolved(targetIp, mac);
 			}
 		}
 	}
 
-	private void handleIpPacket(Ethernet etherPacket, Iface inIface)
+	private void handleIpPacket(Ethernet etherPacket, Iface inIface,
+			boolean checked)
 	{
 		// Make sure it's an IP packet
 		if (etherPacket.getEtherType() != Ethernet.TYPE_IPv4)
@@ -263,96 +353,97 @@ public class Router extends Device
 
 		// Get IP header
 		IPv4 ipPacket = (IPv4)etherPacket.getPayload();
-		System.out.println("Handle IP packet");
+		Log.trace(() -> "Handle IP packet");
 
-		if(ipPacket.getProtocol() == IPv4.PROTOCOL_UDP) {
-			UDP udp = (UDP)ipPacket.getPayload();
-			if(udp.getSourcePort() == UDP.RIP_PORT)
-				handleUDP(etherPacket, inIface);
+		// Verify checksum, unless it was checked on the received bytes
+		if (!checked)
+		{
+			short origCksum = ipPacket.getChecksum();
+			ipPacket.resetChecksum();
+			byte[] serialized = ipPacket.serialize();
+			ipPacket.deserialize(serialized, 0, serialized.length);
+			short calcCksum = ipPacket.getChecksum();
+			if (origCksum != calcCksum)
+			{ return; }
 		}
 
-
-		// Verify checksum
-		short origCksum = ipPacket.getChecksum();
-		ipPacket.resetChecksum();
-		byte[] serialized = ipPacket.serialize();
-		ipPacket.deserialize(serialized, 0, serialized.length);
-		short calcCksum = ipPacket.getChecksum();
-		if (origCksum != calcCksum)
-		{ return; }
+		// RIP messages are for the RIP engine, if it is running
+		RipEngine rip = this.rip;
+		if (rip != null && rip.isRipPacket(ipPacket))
+		{
+			rip.handlePacket(etherPacket, inIface);
+			return;
+		}
 
 		// Check TTL
-		ipPacket.setTtl((byte)(ipPacket.getTtl()-1));
+		byte oldTtl = ipPacket.getTtl();
+		ipPacket.setTtl((byte)(oldTtl-1));
 		if (0 == ipPacket.getTtl())
 		{
 			icmp_code(etherPacket, (byte) 11, (byte) 0, inIface);
 			return;
 		}
 
-		// Reset checksum now that TTL is decremented
-		ipPacket.resetChecksum();
+		// Patch the checksum for the new TTL (RFC 1624) rather than recompute it
+		ipPacket.setChecksum(IpChecksum.updateTtl(ipPacket.getChecksum(),
+				oldTtl, ipPacket.getTtl(), ipPacket.getProtocol()));
 
 		// Check if packet is destined for one of router's interfaces
-		for (Iface iface : this.interfaces.values())
-		{
-			if (ipPacket.getDestinationAddress() == iface.getIpAddress())
-			{ 
-				if(ipPacket.getProtocol() == IPv4.PROTOCOL_UDP || ipPacket.getProtocol() == IPv4.PROTOCOL_TCP)
-				{	
-					icmp_code(etherPacket, (byte) 3, (byte) 3, inIface);
-					return;
+		if (null != this.getInterfaceByIp(ipPacket.getDestinationAddress()))
+		{ 
+			if(ipPacket.getProtocol() == IPv4.PROTOCOL_UDP || ipPacket.getProtocol() == IPv4.PROTOCOL_TCP)
+			{	
+				icmp_code(etherPacket, (byte) 3, (byte) 3, inIface);
+				return;
+			}
+			if(ipPacket.getProtocol() == IPv4.PROTOCOL_ICMP && ((ICMP)(ipPacket.getPayload())).getIcmpType() == 8)
+			{
+				//echo reply
+				Ethernet ether = new Ethernet();
+				IPv4 ip = new IPv4();
+				ICMP icmp = new ICMP();
+				Data data = new Data();
+				ether.setPayload(ip);
+				ip.setPayload(icmp);
+				icmp.setPayload(data);
+
+				ether.setEtherType(Ethernet.TYPE_IPv4);
+				ether.setSourceMACAddress(inIface.getMacAddress().toBytes());
+
+				int dstAddr = ipPacket.getSourceAddress();
+				RouteEntry bestMatch = this.routeTable.lookup(dstAddr);
+				if (null == bestMatch)  { return; }
+				Iface outIface = bestMatch.getInterface();
+				int nextHop = bestMatch.getGatewayAddress();
+				if (0 == nextHop)
+				{ nextHop = dstAddr; }
+				ArpEntry arpEntry = this.arpCache.lookup(nextHop);
+				if (null == arpEntry)  { return; }
+
+
+				ether.setDestinationMACAddress(arpEntry.getMac().toBytes());
+
+				ip.setTtl((byte)64);
+				ip.setProtocol(IPv4.PROTOCOL_ICMP);
+				ip.setSourceAddress(ipPacket.getDestinationAddress());
+				ip.setDestinationAddress(ipPacket.getSourceAddress());
+
+				icmp.setIcmpType((byte)0);
+				icmp.setIcmpCode((byte)0);
+
+				int index = 0;
+
+				ICMP request = (ICMP)ipPacket.getPayload();
+				byte[] icmp_payload = request.getPayload().serialize();
+				byte[] new_data = new byte[icmp_payload.length];
+				for(int i = 0 ; i < icmp_payload.length; i++) {
+					new_data[index++] = icmp_payload[i];
 				}
-				if(ipPacket.getProtocol() == IPv4.PROTOCOL_ICMP && ((ICMP)(ipPacket.getPayload())).getIcmpType() == 8)
-				{
-					//echo reply
-					Ethernet ether = new Ethernet();
-					IPv4 ip = new IPv4();
-					ICMP icmp = new ICMP();
-					Data data = new Data();
-					ether.setPayload(ip);
-					ip.setPayload(icmp);
-					icmp.setPayload(data);
-
-					ether.setEtherType(Ethernet.TYPE_IPv4);
-					ether.setSourceMACAddress(inIface.getMacAddress().toBytes());
 
-					int dstAddr = ipPacket.getSourceAddress();
-					RouteEntry bestMatch = this.routeTable.lookup(dstAddr);
-					if (null == bestMatch)  { return; }
-					Iface outIface = bestMatch.getInterface();
-					int nextHop = bestMatch.getGatewayAddress();
-					if (0 == nextHop)
-					{ nextHop = dstAddr; }
-					ArpEntry arpEntry = this.arpCache.lookup(nextHop);
-					if (null == arpEntry)  { return; }
-
-
-					ether.setDestinationMACAddress(arpEntry.getMac().toBytes());
-
-					ip.setTtl((byte)64);
-					ip.setProtocol(IPv4.PROTOCOL_ICMP);
-					ip.setSourceAddress(ipPacket.getDestinationAddress());
-					ip.setDestinationAddress(ipPacket.getSourceAddress());
-
-					icmp.setIcmpType((byte)0);
-					icmp.setIcmpCode((byte)0);
-
-					int ipHeader_length = serialized.length;
-
-					int index = 0;
-
-					ICMP request = (ICMP)ipPacket.getPayload();
-					byte[] icmp_payload = request.getPayload().serialize();
-					byte[] new_data = new byte[icmp_payload.length];
-					for(int i = 0 ; i < icmp_payload.length; i++) {
-						new_data[index++] = icmp_payload[i];
-					}
-
-					data.setData(new_data);
-					boolean check = this.sendPacket(ether, inIface);
-				} else {
-					return;
-				}
+				data.setData(new_data);
+				boolean check = this.sendPacket(ether, inIface);
+			} else {
+				return;
 			}
 		}
 
@@ -365,7 +456,7 @@ public class Router extends Device
 		// Make sure it's an IP packet
 		if (etherPacket.getEtherType() != Ethernet.TYPE_IPv4)
 		{ return; }
-		System.out.println("Forward IP packet");
+		Log.trace(() -> "Forward IP packet");
 
 		// Get IP header
 		IPv4 ipPacket = (IPv4)etherPacket.getPayload();
@@ -396,23 +487,8 @@ public class Router extends Device
 		// Set destination MAC address in Ethernet header
 		ArpEntry arpEntry = this.arpCache.lookup(nextHop);
 		if (null == arpEntry)
-		{ 
-			//System.out.println("arp entry is null");
-			synchronized(this.ip_queues) {
-				if(!ip_queues.containsKey(nextHop)) {
-						LinkedList<Ethernet> list = new LinkedList<Ethernet>();
-						list.add(etherPacket);
-						
-						ip_queues.put(nextHop, list);
-						synchronized(this.count) {count.put(nextHop, 0); }
-						synchronized(this.pair) {pair.put(etherPacket, inIface); }
-				} else {
-						ip_queues.get(nextHop).add(etherPacket);
-						synchronized(this.pair) {pair.put(etherPacket, inIface); }
-				}
-			}
-
-		} else {
+		{ this.arpResolver.enqueue(etherPacket, nextHop, outIface, inIface); }
+		else {
 			etherPacket.setDestinationMACAddress(arpEntry.getMac().toBytes());
 			this.sendPacket(etherPacket, outIface);
 		}
@@ -475,13 +551,13 @@ public class Router extends Device
 		return;
 	}
 		
-		public void send_arp(int nextHop, Iface inIface) {
+		public void send_arp(int nextHop, Iface outIface) {
 			Ethernet ether = new Ethernet();
 			ARP arp = new ARP();
 			ether.setPayload(arp);
 
 			ether.setEtherType(Ethernet.TYPE_ARP);
-			ether.setSourceMACAddress(inIface.getMacAddress().toBytes());
+			ether.setSourceMACAddress(outIface.getMacAddress().toBytes());
 			ether.setDestinationMACAddress("FF:FF:FF:FF:FF:FF");
 
 			arp.setHardwareType(ARP.HW_TYPE_ETHERNET);
@@ -489,123 +565,11 @@ public class Router extends Device
 			arp.setHardwareAddressLength((byte)Ethernet.DATALAYER_ADDRESS_LENGTH);
 			arp.setProtocolAddressLength((byte) 4);
 			arp.setOpCode(ARP.OP_REQUEST);
-			arp.setSenderHardwareAddress(inIface.getMacAddress().toBytes());
-			arp.setSenderProtocolAddress(inIface.getIpAddress());
+			arp.setSenderHardwareAddress(outIface.getMacAddress().toBytes());
+			arp.setSenderProtocolAddress(outIface.getIpAddress());
 			arp.setTargetHardwareAddress(new byte[6]);
 			arp.setTargetProtocolAddress(nextHop);
-			RouteEntry bestMatch = this.routeTable.lookup(nextHop);
-			Iface outIface = bestMatch.getInterface();
 			
 			boolean	result = this.sendPacket(ether, outIface);
 		}
-
-		
-		class TimeThread extends Thread
-		{
-			Map<Integer, LinkedList> ip_queues;
-			Map<Integer, Long> time;
-			Map<Integer, Integer> count;
-			Map<Ethernet, Iface> pair;
-			public TimeThread(Map<Integer, LinkedList> ip_queues, 
-					Map<Integer, Long> time, Map<Integer, Integer> count, Map<Ethernet, Iface> pair) {
-				this.ip_queues = ip_queues;
-				this.time = time;
-				this.count = count;
-				this.pair = pair;
-			}
-
-			public void run() {
-				while(true) {
-					if(this.ip_queues != null) {
-						synchronized(this.ip_queues) {
-							synchronized(this.count) {
-								Iterator queueIt = this.ip_queues.entrySet().iterator();
-								while (queueIt.hasNext()) {
-									Map.Entry mapElement = (Map.Entry)queueIt.next();
-									Integer currip = (Integer)(mapElement.getKey());
-									int currIP = currip.intValue();
-									LinkedList<Ethernet> currQ = this.ip_queues.get(currIP);
-									if(!currQ.isEmpty() && count.get(currIP) == 0) {
-									  Ethernet currPkt = currQ.get(0);
-										Iface currIface = pair.get(currPkt);
-										send_arp(currIP, currIface);
-										count.put(currIP, count.get(currIP)+1);
-										long currTime = System.currentTimeMillis();
-										time.put(currIP, currTime);
-									}
-									long currT = System.currentTimeMillis();
-									if(!currQ.isEmpty() && (time.get(currIP) + 1000 < currT) && count.get(currIP) < 3){
-										Ethernet currPkt = currQ.get(0);
-										Iface currIface = pair.get(currPkt);
-										send_arp(currIP, currIface);
-										count.put(currIP, count.get(currIP)+1);
-										long currTime = System.currentTimeMillis();
-										time.put(currIP, currTime);
-									}
-									if(!currQ.isEmpty() && (time.get(currIP) + 1000 < currT) && count.get(currIP) == 3){
-										while(!currQ.isEmpty()) {
-											Ethernet currPkt = currQ.get(0);
-											Iface currIface = pair.get(currPkt);
-											icmp_code(currPkt, (byte) 3, (byte) 1, currIface);
-											currQ.removeFirst();
-											this.pair.remove(currPkt);	
-										}
-										count.put(currIP, 0);
-									}
-								}
-							}
-						}
-					}
-				}
-			}
-		}
-		
-		class unsolicitedThread extends Thread
-		{
-			private Router curr_r;
-			private long last_time;
-			Map<RouteEntry, Long> entry_timings;
-			public unsolicitedThread(Router r, Map<RouteEntry, Long> timings) {
-				this.curr_r = r;
-				this.last_time = System.currentTimeMillis();
-				this.entry_timings = timings;
-			}
-			public void run(){
-				long curr_time = System.currentTimeMillis();
-				if(curr_time - last_time > 10000) {
-					Map<String, Iface> interface_list = curr_r.getInterfaces();
-					for(Iface iface : interface_list.values()) {
-						int dstIP = iface.getIpAddress();
-						int gwIp = 0;
-						int maskIp = iface.getSubnetMask();
-						send_rip_packet(iface, 1, true);
-					}
-					last_time = curr_time;
-				}
-
-				synchronized(this.entry_timings) {
-					Iterator queueIt = this.entry_timings.entrySet().iterator();
-					while (queueIt.hasNext()) {
-						Map.Entry mapElement = (Map.Entry)queueIt.next();
-						RouteEntry e = (RouteEntry)(mapElement.getKey());
-						long timing = (long)entry_timings.get(e);
-						if(curr_time - timing > 30000) {
-							boolean is_local = false;														
-
-							for(Iface iface : this.curr_r.interfaces.values()) {
-								if(e.getInterface().toString().equalsIgnoreCase(iface.toString())) {
-									is_local = true;
-								}
-							}
-
-							if(is_local == false) {
-								routeTable.remove(e.getDestinationAddress(), e.getMaskAddress());
-								this.entry_timings.remove(e);
-							}
-						}
-					}
-				}
-
-			}
-		}
 }
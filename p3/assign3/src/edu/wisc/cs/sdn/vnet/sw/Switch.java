@@ -4,6 +4,8 @@ import net.floodlightcontroller.packet.Ethernet;
 import edu.wisc.cs.sdn.vnet.Device;
 import edu.wisc.cs.sdn.vnet.DumpFile;
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.IfaceTable;
+import edu.wisc.cs.sdn.vnet.Log;
 
 /**
  * @author Aaron Gember-Jacobson
@@ -22,6 +24,12 @@ public class Switch extends Device
 		this.macTable = new MACTable();
 	}
 
+	/**
+	 * The MAC table is safe for concurrent use, and nothing else changes.
+	 */
+	public boolean isConcurrent()
+	{ return true; }
+
 	/**
 	 * Handle an Ethernet packet received on a specific interface.
 	 * @param etherPacket the Ethernet packet that was received
@@ -29,7 +37,8 @@ public class Switch extends Device
 	 */
 	public void handlePacket(Ethernet etherPacket, Iface inIface)
 	{
-		System.out.println("*** -> Received packet: " +
+		boolean traced = Log.samplePacket();
+		Log.packet(traced, () -> "*** -> Received packet: " +
                 etherPacket.toString().replace("\n", "\n\t"));
 		
 		/********************************************************************/
@@ -42,12 +51,14 @@ public class Switch extends Device
 		{ this.sendPacket(etherPacket, entry.getInterface()); }
 		else
 		{
-			for (Iface iface : this.interfaces.values()) 
+			IfaceTable ifaces = this.getInterfaceTable();
+			for (int i = 0; i < ifaces.size(); i++) 
 			{
+				Iface iface = ifaces.get(i);
 				if (iface != inIface)
 				{
 					this.sendPacket(etherPacket, iface);
-					System.out.println("Send packet out interface "+iface);
+					Log.packet(traced, () -> "Send packet out interface "+iface);
 				}
 			}
 		}
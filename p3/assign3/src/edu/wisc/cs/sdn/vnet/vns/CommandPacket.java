@@ -6,6 +6,12 @@ import net.floodlightcontroller.packet.Ethernet;
 
 public class CommandPacket extends Command
 {
+	/** Length of the NUL-padded interface name */
+	public static final int NAME_SIZE = 16;
+	
+	/** Length of everything before the Ethernet frame */
+	public static final int HEADER_SIZE = 4 + 4 + NAME_SIZE;
+	
 	protected String mInterfaceName;
 	protected Ethernet etherPacket;
 	
@@ -16,7 +22,7 @@ public class CommandPacket extends Command
 	{
 		super.deserialize(buf);
 				
-		byte[] tmpBytes = new byte[16];
+		byte[] tmpBytes = new byte[NAME_SIZE];
 		buf.get(tmpBytes);
 		this.mInterfaceName = new String(tmpBytes).trim();
 		
@@ -28,7 +34,7 @@ public class CommandPacket extends Command
 	}
 	
 	protected int getSize()
-	{ return super.getSize() + 16; }
+	{ return super.getSize() + NAME_SIZE; }
 	
 	protected byte[] serialize()
 	{
@@ -42,7 +48,7 @@ public class CommandPacket extends Command
         byte[] parentData = super.serialize();
         
         bb.put(parentData);
-        byte[] tmp = new byte[16];
+        byte[] tmp = new byte[NAME_SIZE];
         System.arraycopy(this.mInterfaceName.getBytes(), 0, tmp, 0, 
                 this.mInterfaceName.length());
         bb.put(tmp);
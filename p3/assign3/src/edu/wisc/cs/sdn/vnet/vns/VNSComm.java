@@ -1,28 +1,75 @@
 package edu.wisc.cs.sdn.vnet.vns;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
 
 import net.floodlightcontroller.packet.Ethernet;
 import net.floodlightcontroller.packet.MACAddress;
 
 import edu.wisc.cs.sdn.vnet.Device;
+import edu.wisc.cs.sdn.vnet.Frame;
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.Pipeline;
 
 public class VNSComm 
 {
 	private Socket socket;
+	private SocketChannel channel;
 	private Device device;
 	
+	/** Default most packets written at once */
+	public static final int DEFAULT_MAX_BATCH = 64;
+	
+	/** Default longest, in microseconds, a packet waits to be written */
+	public static final long DEFAULT_MAX_DELAY = 200;
+	
+	/** Outgoing packets, already in VNS format, waiting to be written */
+	private ByteBuffer outBuf;
+	private int outPackets;
+	private long firstQueued;
+	private int maxBatch;
+	private long maxDelayNanos;
+	private boolean flushRequested;
+	private final Object outLock = new Object();
+	
+	/** The other batch buffer, which senders fill while one is written;
+	 *  guarded by writeLock, which is held while a batch is written so
+	 *  batches go out one at a time and in order */
+	private ByteBuffer spareBuf;
+	private final Object writeLock = new Object();
+	
+	/** Worker threads frames are handed to; null to handle them on the
+	 *  thread reading from the server */
+	private Pipeline pipeline;
+	
 	public VNSComm(Device device)
 	{ 
 		this.device = device;
 		this.device.setVNSComm(this);
+		this.outBuf = ByteBuffer.allocateDirect(
+				DEFAULT_MAX_BATCH * Frame.MAX_LEN);
+		this.spareBuf = ByteBuffer.allocateDirect(
+				DEFAULT_MAX_BATCH * Frame.MAX_LEN);
+		this.outPackets = 0;
+		this.flushRequested = false;
+		this.pipeline = null;
+		this.maxBatch = DEFAULT_MAX_BATCH;
+		this.maxDelayNanos = DEFAULT_MAX_DELAY * 1000;
+		
+		Thread flusher = new Thread(new Runnable()
+		{
+			public void run()
+			{ flushDelayed(); }
+		}, "vns-flusher");
+		flusher.setDaemon(true);
+		flusher.start();
 	}
 	
 	public boolean connectToServer(short port, String server)
@@ -39,7 +86,10 @@ public class VNSComm
 		
 		// Create socket and attempt to connect to the server
 		try 
-		{ socket = new Socket(addr, port); }
+		{
+			channel = SocketChannel.open(new InetSocketAddress(addr, port));
+			socket = channel.socket();
+		}
 		catch (IOException e) 
 		{
 			e.printStackTrace();
@@ -91,6 +141,8 @@ public class VNSComm
 			}
 		}
 		
+		this.device.publishInterfaces();
+		
 		System.out.println("Device interfaces:");
 		if (0 == this.device.getInterfaces().size())
 		{ System.out.println(" Interface list empty"); }
@@ -108,73 +160,42 @@ public class VNSComm
 	
 	public boolean readFromServerExpect(int expectedCmd)
 	{
-		int bytesRead = 0;
-		InputStream inStream = null;
-		
-		// Get input stream
-		try 
-		{ inStream = this.socket.getInputStream(); } 
-		catch (IOException e) 
-		{
-			e.printStackTrace();
-			return false;
-		}
+		// Read straight into a pooled buffer, which the frame keeps if this
+		// turns out to be a packet
+		Frame frame = Frame.acquire();
+		ByteBuffer buf = frame.getBuffer();
 		
 		// Attempt to read the size of the incoming packet
-		byte[] lenBytes = new byte[4];
-		while (bytesRead < 4)
+		buf.limit(4);
+		if (!this.readFully(buf))
 		{
-			try 
-			{
-				int ret = inStream.read(lenBytes, bytesRead, 4 - bytesRead);
-				if (ret < 0)
-				{ throw new Exception(); }
-				bytesRead += ret;
-			} 
-			catch (Exception e) 
-			{
-				e.printStackTrace();
-				return false;
-			}
+			frame.release();
+			return false;
 		}
 		
-		int len = ByteBuffer.wrap(lenBytes).getInt();
+		int len = buf.getInt(0);
 		
-		if (len > 10000 || len < 0)
+		if (len > Frame.MAX_LEN || len < 8)
 		{
 			System.err.println(String.format(
 					"Error: comamnd length too large %d", len));
 			try { socket.close(); } catch (IOException e) { }
+			frame.release();
 			return false;
 		}
 		
-		// Allocate buffer
-		ByteBuffer buf = ByteBuffer.allocate(len);
-		
-		// Set first field of command since we've already read it
-		buf.putInt(len);
-		
 		// Read the rest of the command
-		while (bytesRead < len)
+		buf.limit(len);
+		if (!this.readFully(buf))
 		{
-			try 
-			{
-				int ret = inStream.read(buf.array(), bytesRead, len - bytesRead);
-				if (ret < 0)
-				{ throw new Exception(); }
-				bytesRead += ret;
-			} 
-			catch (Exception e) 
-			{
-				e.printStackTrace();
-				System.err.println("Error: failed reading command body");
-				try { socket.close(); } catch (IOException e2) { }
-				return false;
-			}
+			System.err.println("Error: failed reading command body");
+			try { socket.close(); } catch (IOException e2) { }
+			frame.release();
+			return false;
 		}
 		
 		// Make sure the command is what we expected if we were expecting something
-		int command = buf.getInt();
+		int command = buf.getInt(4);
 		if (expectedCmd != 0 && command != expectedCmd)
 		{
 			if (command != Command.VNS_CLOSE) // VNS_CLOSE is always ok
@@ -182,26 +203,57 @@ public class VNSComm
 				System.err.println(String.format(
 						"Error: expected command %d but got %d", expectedCmd,
 						command));
+				frame.release();
 				return false;
 			}
 		}
 		
-		buf.position(0);
-		switch(command)
+		if (Command.VNS_PACKET == command)
 		{
-		case Command.VNS_PACKET:
-			CommandPacket cmdPkt = new CommandPacket();
-			cmdPkt.deserialize(buf);
+			// Too short to hold the interface name the header promises
+			if (len < CommandPacket.HEADER_SIZE)
+			{
+				System.err.println(String.format(
+						"Error: packet command too short %d", len));
+				try { socket.close(); } catch (IOException e) { }
+				frame.release();
+				return false;
+			}
+			
+			// Decode the header in place: the interface name follows the
+			// command header, and the Ethernet frame follows the name
+			int nameOffset = CommandPacket.HEADER_SIZE - CommandPacket.NAME_SIZE;
+			Iface inIface = this.device.getInterface(frame.getData(), 
+					nameOffset, CommandPacket.NAME_SIZE);
+			frame.set(CommandPacket.HEADER_SIZE, 
+					len - CommandPacket.HEADER_SIZE, inIface);
 			
 			// Log packet
             if (this.device.getLogFile() != null)
-            { this.device.getLogFile().dump(cmdPkt.etherPacket); }
+            { 
+            	this.device.getLogFile().dump(frame.getData(), 
+            			frame.getOffset(), frame.getLength()); 
+            }
 			
-			// Pass to device, student's code should take over here
-			this.device.handlePacket(cmdPkt.etherPacket, 
-					this.device.getInterface(cmdPkt.mInterfaceName));
-			break;
+			// With a pipeline, a worker takes it from here
+			if (this.pipeline != null)
+			{
+				this.pipeline.dispatch(frame);
+				return true;
+			}
 			
+			// Pass to device, student's code should take over here, then
+			// write out whatever it sent in response as one batch
+			this.device.handleFrame(frame);
+			this.flush();
+			return true;
+		}
+		
+		// Other commands are rare, so decode them from a copy sized to fit
+		buf = ByteBuffer.wrap(Arrays.copyOf(frame.getData(), len));
+		frame.release();
+		switch(command)
+		{
 		case Command.VNS_CLOSE:
 			System.err.println("VNS server closed session.");
 			CommandClose cmdClose = new CommandClose();
@@ -223,6 +275,28 @@ public class VNSComm
 		return true;
 	}
 	
+	/**
+	 * Read from the server until the buffer is filled up to its limit.
+	 * @return false if the connection failed or was closed first
+	 */
+	private boolean readFully(ByteBuffer buf)
+	{
+		try 
+		{
+			while (buf.hasRemaining())
+			{
+				if (this.channel.read(buf) < 0)
+				{ return false; }
+			}
+			return true;
+		} 
+		catch (IOException e) 
+		{
+			e.printStackTrace();
+			return false;
+		}
+	}
+	
 	public boolean etherAddrsMatchInterface(Ethernet etherPacket, 
 			String ifaceName)
 	{
@@ -241,14 +315,48 @@ public class VNSComm
 		return true;
 	}
 	
+	/**
+	 * Coalesce outgoing packets: the flusher thread writes a batch once it
+	 * holds maxBatch packets or once maxDelayMicros have passed since its
+	 * first packet, and without a pipeline the batch is also written at the
+	 * end of handling each command from the server, whichever is first. A 
+	 * batch may grow past maxBatch while the one before is being written.
+	 * @param maxBatch most packets per write; 1 writes every packet at once
+	 * @param maxDelayMicros longest a packet may wait to be written
+	 */
+	public void setBatching(int maxBatch, long maxDelayMicros)
+	{
+		synchronized(this.outLock)
+		{
+			this.maxBatch = Math.max(1, maxBatch);
+			this.maxDelayNanos = maxDelayMicros * 1000;
+			this.outLock.notifyAll();
+		}
+	}
+	
+	/**
+	 * @param pipeline worker threads to hand received frames to; null to
+	 *        handle frames on the thread reading from the server
+	 */
+	public void setPipeline(Pipeline pipeline)
+	{ this.pipeline = pipeline; }
+	
 	// sr_send_packet
 	public boolean sendPacket(Ethernet etherPacket, String ifaceName)
+	{ return this.sendPacket(etherPacket, ifaceName.getBytes()); }
+	
+	/**
+	 * Send an Ethernet packet out an interface.
+	 * @param etherPacket the packet
+	 * @param iface interface on which to send the packet
+	 * @return true if the packet was queued, or sent, successfully
+	 */
+	public boolean sendPacket(Ethernet etherPacket, Iface iface)
+	{ return this.sendPacket(etherPacket, iface.getNameBytes()); }
+	
+	private boolean sendPacket(Ethernet etherPacket, byte[] ifaceName)
 	{
-		CommandPacket cmdPacket = new CommandPacket();
-		cmdPacket.mInterfaceName = ifaceName;
-		cmdPacket.etherPacket = etherPacket;
-		
-		byte[] buf = cmdPacket.serialize();
+		byte[] buf = etherPacket.serialize();
 		
 		/*if (!etherAddrsMatchInterface(etherPacket, ifaceName))
 		{
@@ -256,22 +364,160 @@ public class VNSComm
 			return false;
 		}*/
 		
+		return this.sendFrame(buf, 0, buf.length, ifaceName);
+	}
+	
+	/**
+	 * Send a serialized Ethernet frame out an interface. The frame is copied
+	 * into the outgoing batch, so the caller may reuse its buffer at once.
+	 * The caller never writes to the server itself; if the batch is full, it
+	 * waits for the flusher thread to make room.
+	 * @param buf buffer holding the frame
+	 * @param offset position of the frame in the buffer
+	 * @param len length of the frame
+	 * @param ifaceName name of the interface on which to send the frame
+	 * @return true if the frame was queued, or sent, successfully
+	 */
+	public boolean sendFrame(byte[] buf, int offset, int len, byte[] ifaceName)
+	{
 		// Log packet
         if (this.device.getLogFile() != null)
-        { this.device.getLogFile().dump(etherPacket); }
+        { this.device.getLogFile().dump(buf, offset, len); }
 		
-	    try
+        int size = CommandPacket.HEADER_SIZE + len;
+		synchronized(this.outLock)
 		{
-			//System.out.println(new String(buf));
-			OutputStream outStream = socket.getOutputStream();
-			outStream.write(buf);
-            outStream.flush();
+			while (size > this.outBuf.remaining())
+			{
+				this.flushRequested = true;
+				this.outLock.notifyAll();
+				try
+				{ this.outLock.wait(); }
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+			
+			// Write the VNS header and frame straight into the batch
+			this.outBuf.putInt(size);
+			this.outBuf.putInt(Command.VNS_PACKET);
+			int nameLen = Math.min(ifaceName.length, CommandPacket.NAME_SIZE);
+			this.outBuf.put(ifaceName, 0, nameLen);
+			for (int i = nameLen; i < CommandPacket.NAME_SIZE; i++)
+			{ this.outBuf.put((byte)0); }
+			this.outBuf.put(buf, offset, len);
+			
+			this.outPackets++;
+			if (1 == this.outPackets)
+			{ this.firstQueued = System.nanoTime(); }
+			if (this.outPackets >= this.maxBatch)
+			{ this.flushRequested = true; }
+			if (1 == this.outPackets || this.flushRequested)
+			{ this.outLock.notifyAll(); }
 		}
-		catch(IOException e)
+		return true;
+	}
+	
+	/**
+	 * Write out any packets waiting in the current batch.
+	 * @return false if writing to the server failed
+	 */
+	public boolean flush()
+	{ return this.writeOut(); }
+	
+	/**
+	 * Have the flusher thread write out the current batch as soon as it can,
+	 * rather than wait for the batch to fill or time out.
+	 */
+	public void flushSoon()
+	{
+		synchronized(this.outLock)
 		{
-			System.err.println("Error writing packet");
-			return false;
+			if (this.outPackets > 0)
+			{
+				this.flushRequested = true;
+				this.outLock.notifyAll();
+			}
+		}
+	}
+	
+	/**
+	 * Write out the current batch, first swapping in the spare buffer so
+	 * senders can go on filling it meanwhile.
+	 * @return false if writing to the server failed
+	 */
+	private boolean writeOut()
+	{
+		synchronized(this.writeLock)
+		{
+			ByteBuffer batch;
+			synchronized(this.outLock)
+			{
+				if (0 == this.outPackets)
+				{ return true; }
+				batch = this.outBuf;
+				this.outBuf = this.spareBuf;
+				this.outPackets = 0;
+				this.flushRequested = false;
+				// Senders waiting for room have it now
+				this.outLock.notifyAll();
+			}
+			
+			batch.flip();
+			try
+			{
+				while (batch.hasRemaining())
+				{ this.channel.write(batch); }
+			}
+			catch(IOException e)
+			{
+				System.err.println("Error writing packet");
+				return false;
+			}
+			finally
+			{
+				batch.clear();
+				this.spareBuf = batch;
+			}
+			return true;
+		}
+	}
+	
+	/**
+	 * Body of the flusher thread, which writes out batches that are full,
+	 * have been asked for with flushSoon(), or have waited too long.
+	 */
+	private void flushDelayed()
+	{
+		while (true)
+		{
+			synchronized(this.outLock)
+			{
+				try
+				{
+					while (true)
+					{
+						if (0 == this.outPackets)
+						{
+							this.outLock.wait();
+							continue;
+						}
+						long wait = this.firstQueued + this.maxDelayNanos 
+								- System.nanoTime();
+						if (wait > 0 && !this.flushRequested)
+						{
+							this.outLock.wait(wait / 1000000, (int)(wait % 1000000));
+							continue;
+						}
+						break;
+					}
+				}
+				catch (InterruptedException e)
+				{ return; }
+			}
+			this.writeOut();
 		}
-		return true;
 	}
 }
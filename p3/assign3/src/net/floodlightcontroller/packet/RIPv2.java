@@ -13,6 +13,9 @@ public class RIPv2 extends BasePacket
     public static final byte COMMAND_REQUEST = 1;
     public static final byte COMMAND_RESPONSE = 2;
 
+    /** Most entries one message may carry (RFC 2453, section 4) */
+    public static final int MAX_ENTRIES = 25;
+
 	protected byte command;
 	protected byte version;
 	protected List<RIPv2Entry> entries;